@@ -1,6 +1,7 @@
 package dk.kb.cdx;
 
 import dk.kb.cdx.config.ServiceConfig;
+import dk.kb.cdx.workflow.CdxAuditWorkflow;
 import dk.kb.cdx.workflow.CdxIndexerWorkflow;
 
 import org.slf4j.Logger;
@@ -26,7 +27,21 @@ public class Main {
         ServiceConfig.initialize(System.getProperty("dk.kb.applicationConfig"));
   
         try {            
-           CdxIndexerWorkflow.main(ServiceConfig.CDX_SERVER_URL, ServiceConfig.WARCS_INPUT_LIST_FILE, ServiceConfig.WARCS_OUTPUT_LIST_FILE, ""+ServiceConfig.USEABSOLUTEPATHS,""+ServiceConfig.THREADS, ServiceConfig.IGNORE_PATTERN,""+ServiceConfig.DRYRUN);
+           if ("audit".equals(ServiceConfig.MODE)) {
+               CdxAuditWorkflow.setMaxServerRequests(ServiceConfig.MAX_SERVER_REQUESTS);
+               CdxAuditWorkflow.setReadOptions(ServiceConfig.MAX_READS_PER_MOUNT, ServiceConfig.READ_BUFFER_MB, ServiceConfig.MEMORY_MAPPED);
+               CdxAuditWorkflow.setFileSample(ServiceConfig.AUDIT_EVERY_NTH_FILE);
+               CdxAuditWorkflow.main(ServiceConfig.CDX_SERVER_URL, ServiceConfig.WARCS_INPUT_LIST_FILE, ServiceConfig.AUDIT_OUTPUT_FILE, ""+ServiceConfig.USEABSOLUTEPATHS,""+ServiceConfig.THREADS, ServiceConfig.IGNORE_PATTERN,""+ServiceConfig.AUDIT_SAMPLES_PER_FILE);
+           }
+           else {
+               CdxIndexerWorkflow.setFingerprintFile(ServiceConfig.FINGERPRINT_FILE);
+               CdxIndexerWorkflow.setVirtualThreads(ServiceConfig.VIRTUAL_THREADS);
+               CdxIndexerWorkflow.setResourceLimits(ServiceConfig.MAX_SERVER_REQUESTS, ServiceConfig.MAX_READS_PER_MOUNT);
+               CdxIndexerWorkflow.setReadOptions(ServiceConfig.READ_BUFFER_MB, ServiceConfig.PREFETCH_FILES, ServiceConfig.MEMORY_MAPPED);
+               CdxIndexerWorkflow.setRetryOptions(ServiceConfig.MAX_RETRIES, ServiceConfig.RETRY_DELAY_SECONDS);
+               CdxIndexerWorkflow.setPostCompression(ServiceConfig.POST_COMPRESSION);
+               CdxIndexerWorkflow.main(ServiceConfig.CDX_SERVER_URL, ServiceConfig.WARCS_INPUT_LIST_FILE, ServiceConfig.WARCS_OUTPUT_LIST_FILE, ""+ServiceConfig.USEABSOLUTEPATHS,""+ServiceConfig.THREADS, ServiceConfig.IGNORE_PATTERN,""+ServiceConfig.DRYRUN);
+           }
         } catch(Exception e) { //Will only happen if workers can not be started
             log.error("Error starting workers. Job terminated");
             System.err.println("Error starting workers. Job terminated"); 
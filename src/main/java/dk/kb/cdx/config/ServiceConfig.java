@@ -18,6 +18,20 @@ public class ServiceConfig {
     public static boolean USEABSOLUTEPATHS = false;
     public static String IGNORE_PATTERN=null;
     public static boolean DRYRUN=false;
+    public static String MODE="index";
+    public static String FINGERPRINT_FILE=null;
+    public static boolean VIRTUAL_THREADS=false;
+    public static int MAX_SERVER_REQUESTS=0;
+    public static int MAX_READS_PER_MOUNT=0;
+    public static int READ_BUFFER_MB=0;
+    public static int PREFETCH_FILES=0;
+    public static boolean MEMORY_MAPPED=false;
+    public static int MAX_RETRIES=2;
+    public static int RETRY_DELAY_SECONDS=60;
+    public static String POST_COMPRESSION="none";
+    public static String AUDIT_OUTPUT_FILE=null;
+    public static int AUDIT_SAMPLES_PER_FILE=10;
+    public static int AUDIT_EVERY_NTH_FILE=1;
     
     /**
      * Besides parsing of YAML files using SnakeYAML, the YAML helper class provides convenience
@@ -42,6 +56,20 @@ public class ServiceConfig {
         DRYRUN=serviceConfig.getBoolean("config.workflow.dry_run");
         USEABSOLUTEPATHS=serviceConfig.getBoolean("config.workflow.use_absolute_paths");
         IGNORE_PATTERN=serviceConfig.getString("config.workflow.ignore_pattern");
+        MODE=serviceConfig.getString("config.workflow.mode", "index");
+        FINGERPRINT_FILE=serviceConfig.getString("config.workflow.fingerprint_file", null);
+        VIRTUAL_THREADS=serviceConfig.getBoolean("config.workflow.virtual_threads", false);
+        MAX_SERVER_REQUESTS=serviceConfig.getInteger("config.workflow.max_server_requests", 0);
+        MAX_READS_PER_MOUNT=serviceConfig.getInteger("config.workflow.max_reads_per_mount", 0);
+        READ_BUFFER_MB=serviceConfig.getInteger("config.workflow.read_buffer_mb", 0);
+        PREFETCH_FILES=serviceConfig.getInteger("config.workflow.prefetch_files", 0);
+        MEMORY_MAPPED=serviceConfig.getBoolean("config.workflow.memory_mapped", false);
+        MAX_RETRIES=serviceConfig.getInteger("config.workflow.max_retries", 2);
+        RETRY_DELAY_SECONDS=serviceConfig.getInteger("config.workflow.retry_delay_seconds", 60);
+        POST_COMPRESSION=serviceConfig.getString("config.workflow.post_compression", "none");
+        AUDIT_OUTPUT_FILE=serviceConfig.getString("config.audit.output_file", WARCS_OUTPUT_LIST_FILE+".MISSING");
+        AUDIT_SAMPLES_PER_FILE=serviceConfig.getInteger("config.audit.samples_per_file", 10);
+        AUDIT_EVERY_NTH_FILE=serviceConfig.getInteger("config.audit.every_nth_file", 1);
         
         log.info("Load serviceconfig with properties:" );
         log.info("Cdx server url:"+ CDX_SERVER_URL );
@@ -51,6 +79,20 @@ public class ServiceConfig {
         log.info("Number of workers:"+THREADS);
         log.info("Ignore pattern:"+IGNORE_PATTERN);
         log.info("Dryrun:"+DRYRUN);
+        log.info("Mode:"+MODE);
+        log.info("Fingerprint file:"+FINGERPRINT_FILE);
+        log.info("Virtual threads:"+VIRTUAL_THREADS);
+        log.info("Max server requests:"+MAX_SERVER_REQUESTS);
+        log.info("Max reads per mount:"+MAX_READS_PER_MOUNT);
+        log.info("Read buffer MB:"+READ_BUFFER_MB);
+        log.info("Prefetch files:"+PREFETCH_FILES);
+        log.info("Memory mapped:"+MEMORY_MAPPED);
+        log.info("Max retries:"+MAX_RETRIES);
+        log.info("Retry delay seconds:"+RETRY_DELAY_SECONDS);
+        log.info("Post compression:"+POST_COMPRESSION);
+        log.info("Audit output file:"+AUDIT_OUTPUT_FILE);
+        log.info("Audit samples per file:"+AUDIT_SAMPLES_PER_FILE);
+        log.info("Audit every Nth file:"+AUDIT_EVERY_NTH_FILE);
     }
 
     private static void assignConfig(YAML conf) {
@@ -0,0 +1,217 @@
+package dk.kb.cdx.workflow;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.netpreserve.jwarc.cdx.CdxFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Worker for the {@link CdxAuditWorkflow}. Will take WARC files from CdxAuditWorkflow.getNextWarcFile() until there are no more.
+ * For each WARC-file a sample of the CDX records are queried in the CDX server. The queries for one WARC-file are sent concurrent,
+ * but never more queries in flight than the queryPermits allow. The permits are shared by all workers.
+ * The WARC-files are read under the same per mount read limit and with the same shared read buffers as the indexing workers.
+ * <p>
+ * The returned status has number of audited WARC-files as completed and number of missing or partial WARC-files as errors.
+ */
+public class CdxAuditWorker implements Callable<WorkerStatus>{
+
+    private static final Logger log = LoggerFactory.getLogger(CdxAuditWorker.class);
+
+    //Field index in the CDX11 line: urlkey timestamp original mimetype status digest redirect meta length offset filename
+    private static final int FIELD_TIMESTAMP=1;
+    private static final int FIELD_ORIGINAL=2;
+    private static final int FIELD_OFFSET=9;
+    private static final int FIELD_FILENAME=10;
+    private static final int NUMBER_OF_FIELDS=11;
+
+    private int threadNumber;
+    private HttpClient client;
+    private Semaphore queryPermits;
+    private ResourceLimiter resourceLimiter;
+    private ReadBufferPool readBuffers; //Null if jwarc reads the file or it is memory mapped
+    private boolean memoryMapped;
+    private String queryUrl;
+    private CdxFormat.Builder cdxFormatBuilder;
+    private boolean absolutePath;
+    private int samplesPerFile;
+    private WorkerStatus status= new WorkerStatus();
+    private CdxOutputBuffer cdxBuffer= new CdxOutputBuffer(true);
+
+    public CdxAuditWorker(HttpClient client, Semaphore queryPermits, ResourceLimiter resourceLimiter, ReadBufferPool readBuffers, boolean memoryMapped,
+                          String queryUrl, CdxFormat.Builder cdxFormatBuilder, boolean absolutePath, int samplesPerFile, int threadNumber) {
+        this.client=client;
+        this.queryPermits=queryPermits;
+        this.resourceLimiter=resourceLimiter;
+        this.readBuffers= memoryMapped ? null : readBuffers;
+        this.memoryMapped=memoryMapped;
+        this.queryUrl=queryUrl;
+        this.cdxFormatBuilder=cdxFormatBuilder;
+        this.absolutePath=absolutePath;
+        this.samplesPerFile=samplesPerFile;
+        this.threadNumber=threadNumber;
+    }
+
+    @Override
+    public WorkerStatus call() {
+        log.info("Starting CdxAuditWorkerThread:"+threadNumber);
+
+        String nextWarcFile;
+        while( (nextWarcFile = CdxAuditWorkflow.getNextWarcFile()) != null ) {
+            List<String[]> samples;
+            try {
+                readCdx(nextWarcFile);
+                samples = sampleRecords(cdxBuffer, samplesPerFile);
+            }
+            catch(Exception e) {
+                status.increaseCompleted();
+                log.error("Error reading WARC-file, will not be audited:"+nextWarcFile,e);
+                continue;
+            }
+
+            int found;
+            try {
+                found = countFoundRecords(samples);
+            }
+            catch(Exception e) { //stop thread if CDX server is not running as expected.
+                log.error("Stopping audit worker:"+threadNumber + " Error querying CDX server:"+e.getMessage() + " when auditing WARC file:"+nextWarcFile);
+                return status;
+            }
+
+            status.increaseCompleted();
+            if (found == samples.size()) {
+                log.info("Audit OK:"+nextWarcFile +" found "+found+"/"+samples.size()+" sampled records");
+                continue;
+            }
+
+            status.increaseErrors();
+            log.info("Audit "+(found == 0 ? "MISSING:" : "PARTIAL:")+nextWarcFile +" found "+found+"/"+samples.size()+" sampled records");
+            try {
+                CdxAuditWorkflow.markWarcFileMissing(nextWarcFile);
+            }
+            catch(Exception e) {
+                log.error("Error writing missing WARC file. Stopping thread. WarcFile:"+nextWarcFile,e);
+                return status;
+            }
+        }
+        log.info("Audit worker completed for CdxAuditWorkerThread:"+threadNumber + ". Number audited:"+status.getCompleted() +" Number missing or partial:"+status.getErrors());
+        return status;
+    }
+
+    /**
+     * Write the CDX output for the WARC-file into the worker buffer. Waits for the read permit for the mount and a read buffer.
+     */
+    private void readCdx(String warcFile) throws IOException, InterruptedException {
+        cdxBuffer.reset();
+        Semaphore readPermits = resourceLimiter.getReadPermits(Paths.get(warcFile));
+        readPermits.acquire();
+        ByteBuffer readBuffer = null;
+        try {
+            if (readBuffers != null) {
+                readBuffer = readBuffers.take();
+            }
+            CdxIndexWorker.writeCdx(cdxBuffer, warcFile, cdxFormatBuilder, absolutePath, readBuffer, memoryMapped);
+        }
+        finally {
+            if (readBuffer != null) {
+                readBuffers.release(readBuffer);
+            }
+            readPermits.release();
+        }
+    }
+
+    /**
+     * Send a query for each sampled record concurrent and count how many is found in the CDX server.
+     * A permit is taken before each query is sent and released when the response is received,
+     * so a full scan (samplesPerFile 0) of a large WARC-file will not open a connection for every record at once.
+     */
+    private int countFoundRecords(List<String[]> samples) throws IOException, InterruptedException {
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<CompletableFuture<HttpResponse<String>>>();
+        for (String[] record : samples) {
+            String uri = queryUrl
+                    + "?url=" + URLEncoder.encode(record[FIELD_ORIGINAL], StandardCharsets.UTF_8)
+                    + "&from=" + record[FIELD_TIMESTAMP]
+                    + "&to=" + record[FIELD_TIMESTAMP];
+            HttpRequest request = HttpRequest.newBuilder().uri(URI.create(uri)).GET().build();
+            queryPermits.acquire();
+            responses.add(client.sendAsync(request, BodyHandlers.ofString()).whenComplete((response, e) -> queryPermits.release()));
+        }
+
+        int found=0;
+        for (int i=0;i<samples.size();i++) {
+            HttpResponse<String> response;
+            try {
+                response = responses.get(i).get();
+            }
+            catch(ExecutionException e) {
+                throw new IOException("Error querying CDX server", e.getCause());
+            }
+            if (response.statusCode() != 200) {
+                throw new IOException("Unexpected http status:"+response.statusCode() +" with body:"+response.body());
+            }
+            if (containsRecord(response.body(), samples.get(i))) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * The record is found if the server has a line with same timestamp, offset and filename.
+     */
+    static boolean containsRecord(String body, String[] record) {
+        for (String line : body.split("\n")) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length >= NUMBER_OF_FIELDS
+                    && fields[FIELD_TIMESTAMP].equals(record[FIELD_TIMESTAMP])
+                    && fields[FIELD_OFFSET].equals(record[FIELD_OFFSET])
+                    && fields[FIELD_FILENAME].equals(record[FIELD_FILENAME])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Select evenly spaced records from the CDX output. The header line is skipped and so are records with post data in the key,
+     * since they can not be queried by the url. If samplesPerFile is 0 all records are returned.
+     */
+    static List<String[]> sampleRecords(CdxOutputBuffer cdx, int samplesPerFile) {
+        String[] lines = new String(cdx.array(), 0, cdx.size(), StandardCharsets.UTF_8).split("\n");
+        List<String[]> records = new ArrayList<String[]>();
+        for (String line : lines) {
+            if (line.startsWith(" CDX") || line.contains("__wb_post_data")) {
+                continue;
+            }
+            String[] fields = line.split(" ");
+            if (fields.length == NUMBER_OF_FIELDS) { //Filename with space can not be matched
+                records.add(fields);
+            }
+        }
+
+        if (samplesPerFile <= 0 || records.size() <= samplesPerFile) {
+            return records;
+        }
+        List<String[]> samples = new ArrayList<String[]>();
+        for (int i=0;i<samplesPerFile;i++) {
+            samples.add(records.get((int) ((long) i*records.size()/samplesPerFile)));
+        }
+        return samples;
+    }
+
+}
@@ -0,0 +1,188 @@
+package dk.kb.cdx.workflow;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.netpreserve.jwarc.cdx.CdxFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Audit workflow that checks if the WARC-files in the input list are found in the OutbackCDX server. Nothing is posted to the CDX-server.
+ * <p>
+ * The workflow takes 7 arguments.
+ * <ul>
+ * <li> URL to CDX-server. Same URL as used for indexing, the query parameters are removed when querying. </li>
+ * <li> Text file will list of WARC-files to audit. (Full filepath, one WARC file on each line) </li>
+ * <li> Text file to output missing or partial indexed WARC-files. File will be overwritten. </li>
+ * <li> Absolute path for WARC-files in CDX-server. Must be same value as used when indexing </li>
+ * <li> Number of threads </li>
+ * <li> Skip WARC-files that contains this partial substring </li>
+ * <li> Number of sampled records for each WARC-file. 0 will check all records </li>
+ * </ul>
+ * <p>
+ * Reading the WARC-files is the slow part, so only every Nth WARC-file in the input can be audited, see {@link #setFileSample(int)}.
+ * The reads are limited per mount and use the shared read buffers as in the indexing workflow, see {@link #setReadOptions(int, int, boolean)}.
+ * <p>
+ * For each WARC file the CDX lines are generated, but instead of posting them a sample of the records are queried in the CDX server.
+ * The queries for a WARC-file are sent concurrent, limited by the max number of queries in flight for all workers. If none of the sampled records are found the WARC-file is MISSING, if only some are found it is PARTIAL.
+ * Missing and partial WARC-files are written to the output file, one on each line, so the file can be used as input file for the indexing workflow.
+ * <p>
+ * WARC-files that can not be read are only logged. Indexing them again will also fail.
+ */
+public class CdxAuditWorkflow {
+    private static final Logger log = LoggerFactory.getLogger(CdxAuditWorkflow.class);
+    static final int DEFAULT_MAX_SERVER_REQUESTS=20;
+
+    private static int NUMBER_OF_THREADS=6;
+    private static String INPUT_WARCS_FILE_LIST=null;
+    private static String OUTPUT_WARCS_MISSING_FILE_LIST=null;
+    private static List<String> WARCS_TO_AUDIT= new ArrayList<String>();
+    private static String CDX_SERVER=null;
+    private static boolean ABSOLUTE_PATH=false;
+    private static String IGNORE_PATTERN=null;
+    private static int SAMPLES_PER_FILE=10;
+    private static int MAX_SERVER_REQUESTS=0;
+    private static int MAX_READS_PER_MOUNT=0;
+    private static int READ_BUFFER_MB=0;
+    private static boolean MEMORY_MAPPED=false;
+    private static int EVERY_NTH_FILE=1;
+
+    /**
+     *  Start the audit with the given parameters. See class documentation. Method will return when all workers have completed.
+     */
+    public static void main(String... args) throws Exception {
+        CDX_SERVER=args[0];
+        INPUT_WARCS_FILE_LIST=args[1];
+        OUTPUT_WARCS_MISSING_FILE_LIST=args[2];
+        ABSOLUTE_PATH=Boolean.parseBoolean(args[3]);
+        NUMBER_OF_THREADS=Integer.parseInt(args[4]);
+        IGNORE_PATTERN=args[5];
+        SAMPLES_PER_FILE=Integer.parseInt(args[6]);
+
+        startWorkers();
+    }
+
+    private static void startWorkers() throws Exception {
+        long start=System.currentTimeMillis();
+
+        List<String> inputWarcs = Files.readAllLines(Paths.get(INPUT_WARCS_FILE_LIST));
+        WARCS_TO_AUDIT = sampleWarcFiles(inputWarcs, IGNORE_PATTERN, EVERY_NTH_FILE);
+        Files.deleteIfExists(Paths.get(OUTPUT_WARCS_MISSING_FILE_LIST));
+        Files.createFile(Paths.get(OUTPUT_WARCS_MISSING_FILE_LIST));
+
+        log.info("Input WARC-file size:"+inputWarcs.size() +" WARC-files to audit:"+WARCS_TO_AUDIT.size() +" (every "+EVERY_NTH_FILE+". file)");
+        log.info("Max reads per mount:"+MAX_READS_PER_MOUNT +" (0 is no limit) read buffer MB:"+READ_BUFFER_MB +" (0 is jwarc default) memory mapped:"+MEMORY_MAPPED);
+        int maxServerRequests = MAX_SERVER_REQUESTS > 0 ? MAX_SERVER_REQUESTS : DEFAULT_MAX_SERVER_REQUESTS;
+        log.info("Starting audit with number of threads:"+NUMBER_OF_THREADS +" samples per WARC-file:"+SAMPLES_PER_FILE +" max queries in flight:"+maxServerRequests);
+
+        CdxFormat.Builder cdxFormatBuilder = CdxIndexerWorkflow.createCdxBuilder(); //Must be the same format as used for indexing
+
+        String queryUrl = getQueryUrl(CDX_SERVER);
+        HttpClient client = HttpClient.newBuilder().build(); // Shared by all workers
+        Semaphore queryPermits = new Semaphore(maxServerRequests); // Shared by all workers
+        ResourceLimiter resourceLimiter = new ResourceLimiter(0, MAX_READS_PER_MOUNT); // Only the reads, queries are limited by the queryPermits
+        ReadBufferPool readBuffers = MEMORY_MAPPED ? null : ReadBufferPool.create(READ_BUFFER_MB, NUMBER_OF_THREADS, MAX_READS_PER_MOUNT);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ArrayList<CdxAuditWorker> workerList = new ArrayList<CdxAuditWorker>();
+        for (int threadNumber=0;threadNumber<NUMBER_OF_THREADS;threadNumber++){
+            workerList.add(new CdxAuditWorker(client, queryPermits, resourceLimiter, readBuffers, MEMORY_MAPPED, queryUrl, cdxFormatBuilder, ABSOLUTE_PATH, SAMPLES_PER_FILE, threadNumber));
+        }
+        List<Future<WorkerStatus>> results = executor.invokeAll(workerList);
+        executor.shutdown();
+
+        int totalAudited=0;
+        int totalMissing=0;
+        for (Future<WorkerStatus> f: results) {
+            WorkerStatus status = f.get();
+            totalAudited += status.getCompleted();
+            totalMissing += status.getErrors();
+        }
+        log.info("Total number of WARC-files audited:"+totalAudited);
+        log.info("Total number of missing or partial WARC-files:"+totalMissing +" written to:"+OUTPUT_WARCS_MISSING_FILE_LIST);
+        log.info("Audit completed, run time in millis:"+(System.currentTimeMillis()-start));
+    }
+
+    /**
+     * Limit the number of queries in flight to the CDX server for all workers together. Must be called before main.
+     *
+     * @param maxServerRequests Max number of queries in flight. 0 will use the default of {@value #DEFAULT_MAX_SERVER_REQUESTS}.
+     *                          The audit always has a limit, since a full scan will send a query for every record.
+     */
+    public static void setMaxServerRequests(int maxServerRequests) {
+        MAX_SERVER_REQUESTS = maxServerRequests;
+    }
+
+    /**
+     * Configure how WARC-files are read, same options as for indexing. Must be called before main.
+     *
+     * @param maxReadsPerMount Max number of WARC-files read at the same time from each mount. 0 is no limit.
+     * @param readBufferMb Size in MB of each read buffer. The buffers are shared, one for each read in flight. 0 will let jwarc read the file with its default small buffer.
+     * @param memoryMapped Map the WARC-files into memory instead of reading them. Use for local disks.
+     */
+    public static void setReadOptions(int maxReadsPerMount, int readBufferMb, boolean memoryMapped) {
+        MAX_READS_PER_MOUNT = maxReadsPerMount;
+        READ_BUFFER_MB = readBufferMb;
+        MEMORY_MAPPED = memoryMapped;
+    }
+
+    /**
+     * Only audit every Nth WARC-file in the input. Must be called before main.
+     *
+     * @param everyNthFile 1 or less will audit all WARC-files
+     */
+    public static void setFileSample(int everyNthFile) {
+        EVERY_NTH_FILE = Math.max(1, everyNthFile);
+    }
+
+    public static synchronized String getNextWarcFile() {
+        if (WARCS_TO_AUDIT.size() != 0) {
+            return WARCS_TO_AUDIT.remove(0);
+        }
+        return null;
+    }
+
+    /**
+     * Remove the ignored WARC-files and keep every Nth of the rest. The first WARC-file is always kept.
+     */
+    static List<String> sampleWarcFiles(List<String> warcFiles, String ignorePattern, int everyNthFile) {
+        List<String> sample = new ArrayList<String>();
+        int count=0;
+        for (String warcFile : warcFiles) {
+            if (ignorePattern != null && ignorePattern.length()>0 && warcFile.contains(ignorePattern)) {
+                log.debug("Skipping metadata file:"+warcFile);
+                continue;
+            }
+            if (count++ % everyNthFile == 0) {
+                sample.add(warcFile);
+            }
+        }
+        return sample;
+    }
+
+    public static synchronized void markWarcFileMissing(String warcFile) throws IOException {
+        Path missingPath = Paths.get(OUTPUT_WARCS_MISSING_FILE_LIST);
+        Files.writeString(missingPath, (warcFile+"\n"), StandardOpenOption.APPEND, StandardOpenOption.CREATE);
+    }
+
+    /**
+     * The index URL for OutbackCDX is also the query URL for the collection. Just remove parameters as 'badLines=skip'.
+     */
+    static String getQueryUrl(String cdxServer) {
+        int index = cdxServer.indexOf('?');
+        return index < 0 ? cdxServer : cdxServer.substring(0, index);
+    }
+
+}
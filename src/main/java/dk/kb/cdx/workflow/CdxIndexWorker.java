@@ -1,19 +1,27 @@
 package dk.kb.cdx.workflow;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.netpreserve.jwarc.WarcReader;
 import org.netpreserve.jwarc.cdx.CdxFormat;
 import org.netpreserve.jwarc.cdx.CdxWriter;
 import org.slf4j.Logger;
@@ -22,6 +30,11 @@ import org.slf4j.LoggerFactory;
 public class CdxIndexWorker implements Callable<WorkerStatus>{
     
     private static final Logger log = LoggerFactory.getLogger(CdxIndexWorker.class);
+
+    //Field index in the CDX11 line: urlkey timestamp original mimetype status digest redirect meta length offset filename
+    private static final int FIELD_LENGTH=8;
+    private static final int FIELD_OFFSET=9;
+    private static final Pattern ADDED_RECORDS = Pattern.compile("Added (\\d+) records");
        
     private int threadNumber;
     private boolean dryRun;
@@ -29,107 +42,326 @@ public class CdxIndexWorker implements Callable<WorkerStatus>{
     private  String cdxServerUrl=null;
     CdxFormat.Builder cdxFormatBuilder;
     private WorkerStatus status= new WorkerStatus();
+    private CdxOutputBuffer cdxBuffer; //Reused for all WARC files processed by this worker
+    private ResourceLimiter resourceLimiter;
+    private ReadBufferPool readBuffers; //Shared by all workers. Null if jwarc reads the file or it is memory mapped
+    private boolean memoryMapped;
+    private boolean retryLane=false;
+    private PostCompression postCompression;
+    private HttpClient client; //Shared by all workers, so the connections to the CDX server are pooled and kept open
     
     /**
      *  Start a worker. Worker will query CdxIndexerWorkflow.getNextWarcFile() for new WARC file to process and process them one a time.
      *  It will terminate when there are no further WARC files. (null will be returned from getNextWarcFile method) 
+     *  File reads and requests to the CDX server are limited by the resourceLimiter that is shared by all workers.
+     *  WARC-files are read with a buffer taken from readBuffers together with the read permit, or memory mapped. If readBuffers is null and memoryMapped is false jwarc will read the file. 
+     *  The CDX data is posted compressed if postCompression has an encoding, the postCompression is shared by all workers.
+     *  The HTTP client is shared by all workers.
      * 
      */
-    public CdxIndexWorker( String cdxServerUrl, CdxFormat.Builder cdxFormatBuilder, boolean absolutePath, int threadNumber, boolean dryRun){
+    public CdxIndexWorker(HttpClient client, String cdxServerUrl, CdxFormat.Builder cdxFormatBuilder, boolean absolutePath, int threadNumber, boolean dryRun, ResourceLimiter resourceLimiter, ReadBufferPool readBuffers, boolean memoryMapped, PostCompression postCompression){
+        this.client=client;
         this.threadNumber=threadNumber;
         this.cdxFormatBuilder = cdxFormatBuilder;
         this.cdxServerUrl=cdxServerUrl;
         this.absolutePath=absolutePath;
         this.dryRun=dryRun;
+        this.cdxBuffer= new CdxOutputBuffer(!dryRun); //Dry run will only count lines and bytes
+        this.resourceLimiter=resourceLimiter;
+        this.readBuffers= memoryMapped ? null : readBuffers;
+        this.memoryMapped=memoryMapped;
+        this.postCompression=postCompression;
     }    
     
     
     @Override
     public WorkerStatus call() {
-        log.info("Starting CdxIndexerWorkerThread:"+threadNumber);                        
+        log.info("Starting CdxIndexerWorkerThread:"+threadNumber +(retryLane ? " (retry worker)" : ""));                        
 
         String nextWarcFile;
-        while( (nextWarcFile = CdxIndexerWorkflow.getNextWarcFile()) != null ) {    
+        while( (nextWarcFile = getNextWarcFile()) != null ) {    
+            String fingerprint=null;
+            cdxBuffer.reset();
             try{
-                String cdxOutput=getCdxOutput(nextWarcFile, cdxFormatBuilder); //Exceptions are acceptable, can be corrupt WARC-files.
-                String responseBody=null;
-                try {
-                   responseBody=postCdxToServer(cdxServerUrl, cdxOutput); //Critital this does not fail. Stop thread instead of continue with something that can fail again and again
-                }
-                catch(Exception e) { //stop thread if CDX server is not running as expected.                         
-                 log.error("Stopping worker:"+threadNumber + " Error connecting to CDX server:"+e.getMessage() + " when process WARC file:"+nextWarcFile);  
-                 status.increaseErrors();
-                 return status; //Stop worker                     
+                if (CdxIndexerWorkflow.isFingerprintEnabled()) {
+                    fingerprint=getFingerprint(nextWarcFile);
+                    String indexedCopy=CdxIndexerWorkflow.getIndexedCopy(fingerprint, nextWarcFile);
+                    if (indexedCopy != null) {
+                        status.increaseDuplicates();
+                        log.info("Skipping duplicate:"+nextWarcFile +" same content as:"+indexedCopy);
+                        CdxIndexerWorkflow.markWarcFileCompleted(nextWarcFile);
+                        continue;
+                    }
                 }
-               if (responseBody != null) {
-                   responseBody= responseBody.trim(); //Remove a new line from the server as last character
-               }                
-                status.increaseCompleted();
-                log.info("Indexed:"+nextWarcFile +" result:"+responseBody);                 
-                CdxIndexerWorkflow.markWarcFileCompleted(nextWarcFile);
+                getCdxOutput(nextWarcFile, cdxFormatBuilder); //Exceptions are acceptable, can be corrupt WARC-files.
             }
             catch(Exception e){
-                status.increaseErrors();
-                log.error("Error processing WARC-file:"+nextWarcFile,e);
-                try {
-                    CdxIndexerWorkflow.markWarcFileCompleted(nextWarcFile);
+                if (!markWarcFileFailed(nextWarcFile, e, getFailedOffset())) {
+                    return status; //Stop workflow
                 }
-                catch(Exception eIO) {                        
-                   log.error("Error marking WARC file as completed. Stopping thread. WarcFile:"+nextWarcFile,eIO); // Has not happened yet
+                continue;
+            }
 
-                   return status; //Stop workflow  
+            String responseBody=null;
+            try {
+               responseBody=postCdxToServer(cdxServerUrl, cdxBuffer); //Critital this does not fail. Stop thread instead of continue with something that can fail again and again
+            }
+            catch(CdxServerStatusException e) {
+                if (e.isRejectedData()) { //The CDX data from this WARC-file can not be parsed by the server. Quarantine it and continue
+                    if (!markWarcFileFailed(nextWarcFile, e, -1)) {
+                        return status; //Stop workflow
+                    }
+                    continue;
                 }
+                //Any other status is a server or configuration problem that will fail for every WARC-file
+                log.error("Stopping worker:"+threadNumber + " CDX server answered http status:"+e.getStatus() + " when process WARC file:"+nextWarcFile);
+                status.increaseErrors();
+                return status; //Stop worker
+            }
+            catch(Exception e) { //stop thread if CDX server is not running as expected.                         
+             log.error("Stopping worker:"+threadNumber + " Error connecting to CDX server:"+e.getMessage() + " when process WARC file:"+nextWarcFile);  
+             status.increaseErrors();
+             return status; //Stop worker                     
+            }
+            if (responseBody != null) {
+                responseBody= responseBody.trim(); //Remove a new line from the server as last character
+            }                
+            status.increaseCompleted();
+            status.addRecords(cdxBuffer.getLineCount()-1); //substract header
+            status.addBytes(cdxBuffer.getByteCount());
+            log.info("Indexed:"+nextWarcFile +" result:"+responseBody);                 
+            try {
+                CdxIndexerWorkflow.markWarcFileCompleted(nextWarcFile);
             }
+            catch(Exception eIO) {                        
+               log.error("Error marking WARC file as completed. Stopping thread. WarcFile:"+nextWarcFile,eIO); // Has not happened yet
+               return status; //Stop workflow  
+            }
+            CdxIndexerWorkflow.storeFingerprint(fingerprint, nextWarcFile);
                         
         }
         log.info("Worker completed. No more WARC-files to process for CdxIndexerWorkerThread:"+threadNumber + ". Number processed:"+status.getCompleted() +" Number of errors:"+status.getErrors());                        
         return status;
     }
+
+    /**
+     * The retry worker will only process WARC-files that failed with a transient error.
+     * Must be called before the worker is started.
+     */
+    public void setRetryLane(boolean retryLane) {
+        this.retryLane=retryLane;
+    }
+
+    private String getNextWarcFile() {
+        if (!retryLane) {
+            return CdxIndexerWorkflow.getNextWarcFile();
+        }
+        try {
+            return CdxIndexerWorkflow.getNextRetryWarcFile();
+        }
+        catch(InterruptedException e) {
+            log.warn("Retry worker interrupted. Stopping retries");
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Write the failure to the FAILED file. Permanent failures are quarantined, transient are retried later.
+     * A truncated WARC-file is retried, and quarantined if it is still truncated after the last retry.
+     * 
+     * @return false if the failure could not be written and the worker must stop
+     */
+    private boolean markWarcFileFailed(String warcFile, Exception e, long offset) {
+        status.increaseErrors();
+        WarcFailure failure = WarcFailure.of(warcFile, e, CdxIndexerWorkflow.getAttempt(warcFile), offset);
+        log.error("Error processing WARC-file:"+warcFile +" failure:"+failure.getType() +" attempt:"+failure.getAttempt() +" offset:"+failure.getOffset(),e);
+        try {
+            if (CdxIndexerWorkflow.markWarcFileFailed(failure)) {
+                status.increaseQuarantined();
+            }
+            return true;
+        }
+        catch(Exception eIO) {                        
+           log.error("Error marking WARC file as failed. Stopping thread. WarcFile:"+warcFile,eIO);
+           return false;
+        }
+    }
+
+    /**
+     * The offset after the last CDX record written for the WARC-file (offset + length). 0 if only the header was written, -1 if unknown.
+     */
+    private long getFailedOffset() {
+        String lastLine = cdxBuffer.getLastLine();
+        if (lastLine == null) {
+            return -1;
+        }
+        if (lastLine.startsWith(" CDX")) {
+            return 0;
+        }
+        String[] fields = lastLine.split(" ");
+        try {
+            return Long.parseLong(fields[FIELD_OFFSET])+Long.parseLong(fields[FIELD_LENGTH]);
+        }
+        catch(RuntimeException e) {
+            return -1;
+        }
+    }
     
     /**
      * Return the body message from the CDX server. If everything is well it will be something like: 'Added 80918 records'
      * Will log error if HTTP status is not 200
      */
-    private  String postCdxToServer(String cdxServer, String data) throws IOException,InterruptedException {     
+    private  String postCdxToServer(String cdxServer, CdxOutputBuffer data) throws IOException,InterruptedException {     
 
         if (dryRun) {
-           int lines=data.split("\n").length -1; //substract header        	       
+           long lines=data.getLineCount() -1; //substract header
            return "Added "+lines+" records (dry run)";    
         }
                 
-        HttpClient client = HttpClient.newBuilder().build();
+        PostCompression.Encoding encoding = postCompression.getEncoding(cdxServer);
+        if (encoding != PostCompression.Encoding.NONE) {
+            AtomicReference<PostCompression.CountingInputStream> compressed = new AtomicReference<PostCompression.CountingInputStream>();
+            HttpRequest request = HttpRequest.newBuilder()
+                                  .uri(URI.create(cdxServer))
+                                  .header("Content-Encoding", encoding.headerValue())
+                                  .POST(PostCompression.publisher(data.array(), data.size(), encoding, compressed))
+                                  .build();
+            HttpResponse<String> response = send(request);
+            int status=response.statusCode();
+            String body=response.body();
+            this.status.addWireBytes(compressed.get().getCount()); //Sent also if it is rejected
+            if (status == 400 && !postCompression.isSupported(cdxServer)) {
+                //Bad CDX data or a server that does not decode the Content-Encoding. Only the uncompressed post can tell
+                String uncompressedBody = postUncompressed(cdxServer, data); //Quarantined if it is rejected again
+                postCompression.markUnsupported(cdxServer);
+                return uncompressedBody;
+            }
+            if (!isCompressionRejected(cdxServer, status, body, data.getLineCount()-1)) {
+                checkStatus(status, body);
+                postCompression.markSupported(cdxServer);
+                return body;
+            }
+            postCompression.markUnsupported(cdxServer); //Send it again uncompressed
+        }
+        return postUncompressed(cdxServer, data);
+    }
+
+    private String postUncompressed(String cdxServer, CdxOutputBuffer data) throws IOException,InterruptedException {
         HttpRequest request = HttpRequest.newBuilder()
                               .uri(URI.create(cdxServer))
-                              .POST(BodyPublishers.ofString(data))
+                              .POST(BodyPublishers.ofByteArray(data.array(), 0, data.size()))
                               .build();
 
-        HttpResponse<String> response = client.send(request, BodyHandlers.ofString());        
+        HttpResponse<String> response = send(request);
         int status=response.statusCode();
-        String body=response.body().toString();
+        String body=response.body();
+        checkStatus(status, body);
+        this.status.addWireBytes(data.size());
+        return body;                 
+    }
+
+    private HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        Semaphore serverPermits = resourceLimiter.getServerPermits();
+        serverPermits.acquire();
+        try {
+            return client.send(request, BodyHandlers.ofString());        
+        }
+        finally {
+            serverPermits.release();
+        }
+    }
+
+    private static void checkStatus(int status, String body) throws CdxServerStatusException {
         if (status != 200) {            
             log.error("Unexpected http status:"+status +" with body:"+body);            
-            throw new IOException("Unexpected http status:"+status +" with body:"+body);
+            throw new CdxServerStatusException(status, body);
         }
+    }
 
-        return body;                 
+    /**
+     * Until the endpoint has accepted a compressed post, a 415 status or 'Added 0 records' for data with records
+     * means the server does not understand the Content-Encoding. A 400 can also be bad CDX data, so it is checked with an uncompressed post instead.
+     */
+    private boolean isCompressionRejected(String cdxServer, int status, String body, long records) {
+        if (postCompression.isSupported(cdxServer)) {
+            return false;
+        }
+        if (status == 415) {
+            return true;
+        }
+        Matcher matcher = ADDED_RECORDS.matcher(String.valueOf(body));
+        return status == 200 && records > 0 && matcher.find() && Long.parseLong(matcher.group(1)) == 0;
     }
 
-        
-    private String getCdxOutput(String warcFile, CdxFormat.Builder cdxFormatBuilder ) throws IOException {
+
+    /**
+     * Write the CDX output for the WARC file into the worker buffer. The buffer must be reset first.
+     */
+    private void getCdxOutput(String warcFile, CdxFormat.Builder cdxFormatBuilder ) throws IOException, InterruptedException {
+        Semaphore readPermits = resourceLimiter.getReadPermits(Paths.get(warcFile));
+        readPermits.acquire();
+        long start=System.currentTimeMillis();
+        ByteBuffer readBuffer = null;
+        try {
+            if (readBuffers != null) {
+                readBuffer = readBuffers.take();
+            }
+            writeCdx(cdxBuffer, warcFile, cdxFormatBuilder, absolutePath, readBuffer, memoryMapped);
+        }
+        finally {
+            if (readBuffer != null) {
+                readBuffers.release(readBuffer);
+            }
+            readPermits.release();
+        }
+        status.addRead(new File(warcFile).length(), System.currentTimeMillis()-start);
+    }
+
+    private String getFingerprint(String warcFile) throws IOException, InterruptedException {
+        Semaphore readPermits = resourceLimiter.getReadPermits(Paths.get(warcFile));
+        readPermits.acquire();
+        try {
+            return WarcFingerprint.getFingerprint(Paths.get(warcFile));
+        }
+        finally {
+            readPermits.release();
+        }
+    }
+
+    /**
+     * Write the CDX lines including header for a WARC file to the writer. Writer will be closed.
+     */
+    static void writeCdx(Writer writer, String warcFile, CdxFormat.Builder cdxFormatBuilder, boolean absolutePath) throws IOException {
+        writeCdx(writer, warcFile, cdxFormatBuilder, absolutePath, null, false);
+    }
+
+    /**
+     * Write the CDX lines including header for a WARC file to the writer. Writer will be closed.
+     * If readBuffer is null and memoryMapped is false jwarc will open and read the file, otherwise it is read from a {@link WarcChannels} channel.
+     */
+    static void writeCdx(Writer writer, String warcFile, CdxFormat.Builder cdxFormatBuilder, boolean absolutePath, ByteBuffer readBuffer, boolean memoryMapped) throws IOException {
         File file=new File(warcFile);
         if(!file.exists()) {
-            throw new IOException("WARC file not found:"+warcFile);
+            throw new FileNotFoundException("WARC file not found:"+warcFile);
         }
         
-        List<Path> files = new ArrayList<Path>();
-        files.add(file.toPath());
-        try (StringWriter stringWriter = new StringWriter();CdxWriter cdxWriter = new CdxWriter(stringWriter); ) {           
+        try (CdxWriter cdxWriter = new CdxWriter(writer); ) {           
            cdxWriter.setPostAppend(true); //very important for PyWb SOME playback
            cdxWriter.setFormat(cdxFormatBuilder.build());
            cdxWriter.writeHeaderLine();
            cdxWriter.onWarning(log::error); // Use the current logger
-           cdxWriter.process(files, absolutePath); 
-        return stringWriter.toString();               
+           if (readBuffer == null && !memoryMapped) {
+               List<Path> files = new ArrayList<Path>();
+               files.add(file.toPath());
+               cdxWriter.process(files, absolutePath); 
+               return;
+           }
+           //Same filename as CdxWriter.process(files, absolutePath) uses
+           String filename = (absolutePath ? file.toPath().toAbsolutePath() : file.toPath().getFileName()).toString();
+           try (WarcReader reader = new WarcReader(WarcChannels.open(file.toPath(), readBuffer, memoryMapped))) {
+               cdxWriter.process(reader, filename);
+           }
         }
     }
     
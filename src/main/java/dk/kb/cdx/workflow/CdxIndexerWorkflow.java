@@ -2,17 +2,21 @@ package dk.kb.cdx.workflow;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.http.HttpClient;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.netpreserve.jwarc.cdx.CdxFormat;
 import org.slf4j.Logger;
@@ -35,7 +39,13 @@ import org.slf4j.LoggerFactory;
 * <p>
 * If the indexing workflow is interrupted and stopped, it can just be restarted with the same input WARC-file. It will skip all WARC-files that are listed in the output completed file.
 * If the CDX server does not return a http status. (no connection, server dead etc), then the thread will terminate and log this event. This is to avoid 'processing' and mark then completed when they will fail. 
-* Some WARC-files will return HTTP error status from the CDX-server, but this is expected and due to corrupt WARC-files. This is mostly old ARC files with http-header errors.
+* The thread will also terminate if the CDX server answers with a http status other than 200 or 400 (authentication, wrong url, server error etc).
+* Some WARC-files will return HTTP status 400 from the CDX-server, but this is expected and due to corrupt WARC-files. This is mostly old ARC files with http-header errors.
+* <p>
+* WARC-files that fail are not written to the completed file. Each failure is written as a line to the output file with .FAILED appended, see {@link WarcFailure} for the format.
+* Transient failures (read errors, file not found) are retried on a single worker after all other WARC-files are done. 
+* Permanent failures (corrupt WARC-files, CDX data rejected by the CDX server with status 400) are also written to the output file with .QUARANTINE appended,
+* and the WARC-files listed there are skipped when the workflow is restarted. 
 *
 * <p>
 * Starting the workflow.
@@ -51,7 +61,7 @@ import org.slf4j.LoggerFactory;
 * The list of WARC files completed is stored in the output file file stored in HashSet<String> so the contains() method is fast.
 *
 * <p>
-* A synchronized method 'getNextWarcFile' will return next file to process when a thread require a new file.
+* A method 'getNextWarcFile' guarded by a lock will return next file to process when a thread require a new file.
 * If the file is already in the completed set it will just skip returning it and instead try same check for the next file.
 * When a WARC file has been completed it will be written to the output file and also add to the memory Set of completed files.
 * <p>
@@ -67,6 +77,12 @@ import org.slf4j.LoggerFactory;
 public class CdxIndexerWorkflow {
     private static final Logger log = LoggerFactory.getLogger(CdxIndexerWorkflow.class);
     public static final String DRYRUN_SUFFIX=".dryrun.txt";
+    public static final String FAILED_SUFFIX=".FAILED";
+    public static final String QUARANTINE_SUFFIX=".QUARANTINE";
+    private static final int DEFAULT_PREFETCH_BUFFER_SIZE=1024*1024;
+    private static final int MAX_PREFETCH_LOOKAHEAD=1000; //Lines to look ahead in the queue for files to prefetch
+    //Guards the queues and the output files. Not synchronized, since a virtual thread blocked in or on a monitor pins its carrier thread
+    private static final ReentrantLock LOCK = new ReentrantLock();
 
     private static int NUMBER_OF_THREADS=6;
     private static  String INPUT_WARCS_FILE_LIST=null;
@@ -77,6 +93,24 @@ public class CdxIndexerWorkflow {
     private static String CDX_SERVER=null;
     private static boolean ABSOLUTE_PATH=false;
     private static String IGNORE_PATTERN=null;
+    private static String FINGERPRINT_FILE=null;
+    private static String FINGERPRINT_FILE_LIST=null;
+    private static HashMap<String,String> WARCS_FINGERPRINTS= new HashMap<String,String>();
+    private static boolean VIRTUAL_THREADS=false;
+    private static int MAX_SERVER_REQUESTS=0;
+    private static int MAX_READS_PER_MOUNT=0;
+    private static int READ_BUFFER_MB=0;
+    private static int PREFETCH_FILES=0;
+    private static boolean MEMORY_MAPPED=false;
+    private static WarcPrefetcher PREFETCHER=null;
+    private static String FAILED_FILE_LIST=null;
+    private static String QUARANTINE_FILE_LIST=null;
+    private static HashSet<String> WARCS_QUARANTINED= new HashSet <String>();
+    private static ArrayDeque<RetryEntry> RETRY_QUEUE= new ArrayDeque<RetryEntry>();
+    private static HashMap<String,Integer> WARCS_FAILED_ATTEMPTS= new HashMap<String,Integer>();
+    private static int MAX_RETRIES=2;
+    private static int RETRY_DELAY_SECONDS=60;
+    private static PostCompression.Encoding POST_COMPRESSION=PostCompression.Encoding.NONE;
     
     //String cdxServer, String inputFile, String outoutFile, int numberOfThreads, boolean dryRun
     
@@ -104,9 +138,18 @@ public class CdxIndexerWorkflow {
         IGNORE_PATTERN=args[5];
         DRYRUN=Boolean.parseBoolean(args[6]);        
 
+        FINGERPRINT_FILE_LIST=FINGERPRINT_FILE;
+        FAILED_FILE_LIST=OUTPUT_WARCS_COMPLETED_FILE_LIST+FAILED_SUFFIX;
+        QUARANTINE_FILE_LIST=OUTPUT_WARCS_COMPLETED_FILE_LIST+QUARANTINE_SUFFIX;
+
         if (DRYRUN) {
             OUTPUT_WARCS_COMPLETED_FILE_LIST += DRYRUN_SUFFIX;
+            FAILED_FILE_LIST += DRYRUN_SUFFIX;
+            QUARANTINE_FILE_LIST += DRYRUN_SUFFIX;
             log.info("For dryrun outout file name has been changed to:"+OUTPUT_WARCS_COMPLETED_FILE_LIST);
+            if (isFingerprintEnabled()) {
+                FINGERPRINT_FILE_LIST += DRYRUN_SUFFIX;
+            }
         }
         
         startWorkers();                
@@ -127,45 +170,129 @@ public class CdxIndexerWorkflow {
         }
         log.info("Input WARC-file size:"+WARCS_TO_INDEX.size());
         log.info("Already completed WARC-file size:"+WARCS_COMPLETED.size());
-        log.info("Starting indexing with number of threads:"+NUMBER_OF_THREADS);
+        log.info("Quarantined WARC-file size:"+WARCS_QUARANTINED.size());
+        if (isFingerprintEnabled()) {
+            log.info("Fingerprints of indexed WARC-files:"+WARCS_FINGERPRINTS.size() +" from file:"+FINGERPRINT_FILE_LIST);
+        }
+        log.info("Starting indexing with number of threads:"+NUMBER_OF_THREADS +" virtual threads:"+(VIRTUAL_THREADS && WorkerExecutors.isVirtualThreadsSupported()));
+        log.info("Max CDX server requests:"+MAX_SERVER_REQUESTS +" max reads per mount:"+MAX_READS_PER_MOUNT +" (0 is no limit)");
+        log.info("Read buffer MB:"+READ_BUFFER_MB +" (0 is jwarc default) memory mapped:"+MEMORY_MAPPED +" prefetch files:"+PREFETCH_FILES);
+        log.info("Post compression:"+POST_COMPRESSION.headerValue());
 
         CdxFormat.Builder cdxFormatBuilder = createCdxBuilder();
+        ResourceLimiter resourceLimiter = new ResourceLimiter(MAX_SERVER_REQUESTS, MAX_READS_PER_MOUNT);
+        PostCompression postCompression = new PostCompression(POST_COMPRESSION);
+        HttpClient client = HttpClient.newBuilder().build(); // Shared by all workers
 
+        ReadBufferPool readBuffers = createReadBufferPool();
+        if (PREFETCH_FILES > 0) {
+            PREFETCHER = new WarcPrefetcher(readBuffers != null ? readBuffers : new ReadBufferPool(DEFAULT_PREFETCH_BUFFER_SIZE, 1), resourceLimiter);
+        }
 
-        ExecutorService executor = Executors.newCachedThreadPool();
+        ExecutorService executor = WorkerExecutors.newWorkerExecutor(VIRTUAL_THREADS);
 
         //Start all workers
         ArrayList<CdxIndexWorker> workerList = new ArrayList<CdxIndexWorker>();
         for (int threadNumber=0;threadNumber<NUMBER_OF_THREADS;threadNumber++){
-            CdxIndexWorker  worker =  new CdxIndexWorker(CDX_SERVER, cdxFormatBuilder,ABSOLUTE_PATH,threadNumber, DRYRUN);
+            CdxIndexWorker  worker =  new CdxIndexWorker(client, CDX_SERVER, cdxFormatBuilder,ABSOLUTE_PATH,threadNumber, DRYRUN, resourceLimiter, readBuffers, MEMORY_MAPPED, postCompression);
             workerList.add(worker);
                                 
         }            
-        List<Future<WorkerStatus>> results = executor.invokeAll(workerList);
+        List<Future<WorkerStatus>> results = new ArrayList<Future<WorkerStatus>>(executor.invokeAll(workerList));
+
+        //Retry transient failures on a single worker, so they do not compete with the other WARC-files
+        if (!RETRY_QUEUE.isEmpty()) {
+            log.info("Starting retry worker for WARC-files with transient failures:"+RETRY_QUEUE.size() +" max retries:"+MAX_RETRIES);
+            CdxIndexWorker retryWorker = new CdxIndexWorker(client, CDX_SERVER, cdxFormatBuilder,ABSOLUTE_PATH,NUMBER_OF_THREADS, DRYRUN, resourceLimiter, readBuffers, MEMORY_MAPPED, postCompression);
+            retryWorker.setRetryLane(true);
+            Future<WorkerStatus> retryResult = executor.submit(retryWorker);
+            retryResult.get();
+            results.add(retryResult);
+        }
+        executor.shutdown();
+        long prefetchedBytes = 0;
+        if (PREFETCHER != null) {
+            prefetchedBytes = PREFETCHER.getPrefetchedBytes();
+            PREFETCHER.shutdown();
+            PREFETCHER = null;
+        }
         
-        printWorkflowStatistics(results);
+        long readBufferBytes = readBuffers == null ? 0 : (long) readBuffers.getAllocated()*readBuffers.getBufferSize();
+        printWorkflowStatistics(results, System.currentTimeMillis()-start, prefetchedBytes, readBufferBytes);
         log.info("Workflow completed, run time in millis:"+(System.currentTimeMillis()-start));                
     }
 
+    /**
+     * The read buffers are shared by the workers and the prefetcher, see {@link ReadBufferPool#create(int, int, int)}.
+     * 
+     * @return null if the jwarc default reading is used or the files are memory mapped
+     */
+    private static ReadBufferPool createReadBufferPool() {
+        if (MEMORY_MAPPED) {
+            return null;
+        }
+        return ReadBufferPool.create(READ_BUFFER_MB, NUMBER_OF_THREADS + (PREFETCH_FILES > 0 ? 1 : 0), MAX_READS_PER_MOUNT);
+    }
+
     
-    private static void printWorkflowStatistics( List<Future<WorkerStatus>>  futures) { 
+    private static void printWorkflowStatistics( List<Future<WorkerStatus>>  futures, long runTimeMillis, long prefetchedBytes, long readBufferBytes) { 
     try {
         int totalCompleted=0;
         int totalErrors=0;
+        long totalRecords=0;
+        long totalBytes=0;
+        int totalDuplicates=0;
+        int totalQuarantined=0;
+        long totalReadBytes=0;
+        long totalReadMillis=0;
+        long totalWireBytes=0;
         for (Future<WorkerStatus> f: futures) {
             WorkerStatus status = f.get();
             totalCompleted += status.getCompleted();
             totalErrors += status.getErrors();            
+            totalRecords += status.getRecords();
+            totalBytes += status.getBytes();
+            totalDuplicates += status.getDuplicates();
+            totalQuarantined += status.getQuarantined();
+            totalReadBytes += status.getReadBytes();
+            totalReadMillis += status.getReadMillis();
+            totalWireBytes += status.getWireBytes();
         }
         
         log.info("Total number of WARC-files processed:"+totalCompleted);
         log.info("Total number of errors encounted:"+totalErrors);           
+        log.info("Total number of WARC-files quarantined:"+totalQuarantined +" failures are listed in:"+FAILED_FILE_LIST);
+        log.info("Total number of CDX records:"+totalRecords +" CDX bytes:"+totalBytes);
+        if (!DRYRUN) {
+            log.info(String.format(Locale.ROOT, "Bytes sent to CDX server:%d compression ratio:%.1f", totalWireBytes, totalBytes/(double) Math.max(1, totalWireBytes)));
+        }
+        if (isFingerprintEnabled()) {
+            log.info("Total number of duplicate WARC-files skipped:"+totalDuplicates);
+        }
+        logReadThroughput(totalReadBytes, totalReadMillis, runTimeMillis, prefetchedBytes, readBufferBytes);
      }
      catch(Exception e) {
         log.error("Error logging workflow statistics after run completed",e); //Should never happen...
      }                       
     }
     
+    /**
+     * Log the read throughput for all workers together and the throughput for each MB of allocated read buffer (workers and prefetcher).
+     */
+    private static void logReadThroughput(long totalReadBytes, long totalReadMillis, long runTimeMillis, long prefetchedBytes, long readBufferBytes) {
+        double mb = totalReadBytes/(1024d*1024d);
+        double throughput = mb/Math.max(1, runTimeMillis)*1000d;
+        double workerThroughput = mb/Math.max(1, totalReadMillis)*1000d;
+        log.info(String.format(Locale.ROOT, "Read WARC MB:%.1f throughput MB/s:%.1f, each worker while reading and parsing MB/s:%.1f", mb, throughput, workerThroughput));
+        if (PREFETCH_FILES > 0) {
+            log.info(String.format(Locale.ROOT, "Prefetched WARC MB:%.1f", prefetchedBytes/(1024d*1024d)));
+        }
+        if (readBufferBytes > 0) {
+            double bufferMb = readBufferBytes/(1024d*1024d);
+            log.info(String.format(Locale.ROOT, "Allocated read buffer MB:%.1f throughput MB/s for each MB of buffer:%.2f", bufferMb, throughput/bufferMb));
+        }
+    }
+
     /**
      * JWarc will fail runtime with java8. Is there a better way to detect this?
      * 
@@ -173,8 +300,8 @@ public class CdxIndexerWorkflow {
     private static void checkJavaVersion() {
         String version = System.getProperty("java.version");
         if (version.startsWith("8.0") || version.toString().startsWith("1.8")){
-            log.error("Must use java 11 or 17. Runtime version is:"+version);
-            System.out.println("Must use java 11 or 17. Runtime version is:"+version);
+            log.error("Must use java 11 or later, java 21 or later for virtual threads. Runtime version is:"+version);
+            System.out.println("Must use java 11 or later, java 21 or later for virtual threads. Runtime version is:"+version);
             System.exit(1);    
         }  
     }
@@ -187,37 +314,271 @@ public class CdxIndexerWorkflow {
     private static void loadWarcFilesToProcess() throws IOException{
         WARCS_TO_INDEX = readInputWarcList(INPUT_WARCS_FILE_LIST);
         WARCS_COMPLETED = readCompletedWarcs(OUTPUT_WARCS_COMPLETED_FILE_LIST);
+        WARCS_QUARANTINED = readCompletedWarcs(QUARANTINE_FILE_LIST); //Same format as the completed file
+        RETRY_QUEUE = new ArrayDeque<RetryEntry>();
+        WARCS_FAILED_ATTEMPTS = new HashMap<String,Integer>();
+        WARCS_FINGERPRINTS = new HashMap<String,String>();
+        if (isFingerprintEnabled()) {
+            WARCS_FINGERPRINTS = readFingerprints(FINGERPRINT_FILE_LIST);
+        }
+    }
+
+    /**
+     * Enable the fingerprint store. WARC-files with the same content as an already indexed WARC-file are skipped, also if the path is different.
+     * Must be called before main. Null or blank will disable it.
+     * 
+     * @param fingerprintFile Text file with a line for each indexed WARC-file: fingerprint, tab, path. Will be created if it does not exist.
+     */
+    public static void setFingerprintFile(String fingerprintFile) {
+        FINGERPRINT_FILE = (fingerprintFile == null || fingerprintFile.isBlank()) ? null : fingerprintFile;
+    }
+
+    /**
+     * Run the workers on virtual threads. Requires Java 21 or later, on older Java versions platform threads are used.
+     * Workers waiting for the limits in {@link #setResourceLimits(int, int)} are then cheap, but each worker still keeps its CDX output in memory,
+     * so the heap must be sized for the number of threads.
+     * Must be called before main.
+     */
+    public static void setVirtualThreads(boolean virtualThreads) {
+        VIRTUAL_THREADS = virtualThreads;
+    }
+
+    /**
+     * Limit the load on the CDX server and the file mounts. 0 is no limit. Must be called before main.
+     * 
+     * @param maxServerRequests Max number of requests in flight to the CDX server
+     * @param maxReadsPerMount Max number of WARC-files read at the same time from each mount
+     */
+    public static void setResourceLimits(int maxServerRequests, int maxReadsPerMount) {
+        MAX_SERVER_REQUESTS = maxServerRequests;
+        MAX_READS_PER_MOUNT = maxReadsPerMount;
     }
 
-    public static synchronized String getNextWarcFile() {
+    /**
+     * Configure how WARC-files are read. Must be called before main.
+     * 
+     * @param readBufferMb Size in MB of each read buffer. The buffers are shared, one for each read in flight. 0 will let jwarc read the file with its default small buffer.
+     * @param prefetchFiles Number of the next WARC-files in the queue to read ahead into the OS page cache on a background thread. 0 is disabled.
+     * @param memoryMapped Map the WARC-files into memory instead of reading them. Use for local disks.
+     */
+    public static void setReadOptions(int readBufferMb, int prefetchFiles, boolean memoryMapped) {
+        READ_BUFFER_MB = readBufferMb;
+        PREFETCH_FILES = prefetchFiles;
+        MEMORY_MAPPED = memoryMapped;
+    }
 
-        //To avoid deep stack trace, using while construction instead of recursive method call
-        while (WARCS_TO_INDEX.size() != 0) {
+    /**
+     * Configure retry of WARC-files with transient failures. Must be called before main.
+     * 
+     * @param maxRetries Number of retries after the first attempt. 0 will not retry.
+     * @param retryDelaySeconds Delay before a retry. Multiplied by the attempt number, so the delay increases for each retry.
+     */
+    public static void setRetryOptions(int maxRetries, int retryDelaySeconds) {
+        MAX_RETRIES = maxRetries;
+        RETRY_DELAY_SECONDS = retryDelaySeconds;
+    }
+
+    /**
+     * Compress the CDX data posted to the CDX server. If the CDX server does not accept it, data is sent uncompressed. Must be called before main.
+     * 
+     * @param postCompression 'none', 'gzip' or 'deflate'. Null or blank is none.
+     */
+    public static void setPostCompression(String postCompression) {
+        POST_COMPRESSION = PostCompression.Encoding.parse(postCompression);
+    }
 
-            String next = WARCS_TO_INDEX.remove(0);
+    public static boolean isFingerprintEnabled() {
+        return FINGERPRINT_FILE_LIST != null;
+    }
+
+    /**
+     * Only fingerprints written to the fingerprint file are used. A copy that is being indexed by another worker right now is not skipped,
+     * since that worker can still fail (corrupt replica, quarantined) and then the content would never be indexed.
+     * 
+     * @return Path of the indexed WARC-file that has this fingerprint, or null if the worker should index the WARC-file.
+     */
+    public static String getIndexedCopy(String fingerprint, String warcFile) {
+        LOCK.lock();
+        try {
+            String indexedCopy = WARCS_FINGERPRINTS.get(fingerprint);
+            if (indexedCopy != null && !indexedCopy.equals(warcFile)) {
+                return indexedCopy;
+            }
+            return null;
+        }
+        finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Append the fingerprint of an indexed WARC-file to the fingerprint file. Does nothing if fingerprint is null,
+     * or if a copy with the same fingerprint was indexed at the same time by another worker.
+     * Errors are only logged, a missing fingerprint will just mean a copy is indexed again.
+     */
+    public static void storeFingerprint(String fingerprint, String warcFile) {
+        if (fingerprint == null) {
+            return;
+        }
+        LOCK.lock();
+        try {
+            if (WARCS_FINGERPRINTS.putIfAbsent(fingerprint, warcFile) == null) {
+                Files.writeString(Paths.get(FINGERPRINT_FILE_LIST), (fingerprint+"\t"+warcFile+"\n"),StandardOpenOption.APPEND,StandardOpenOption.CREATE);
+            }
+        }
+        catch(Exception e) {
+            log.error("Error writing fingerprint for warc file:"+warcFile,e);
+        }
+        finally {
+            LOCK.unlock();
+        }
+    }
 
-            //Check it is no already processed. (can happen if run was interrupted and restarted)
-            if (WARCS_COMPLETED.contains(next)) {
-                log.debug("Skipping, already processed:"+next);
-                continue;
+    public static String getNextWarcFile() {
+        LOCK.lock();
+        try {
+            //To avoid deep stack trace, using while construction instead of recursive method call
+            while (WARCS_TO_INDEX.size() != 0) {
+
+                String next = WARCS_TO_INDEX.remove(0);
+
+                if (isSkipped(next)) {
+                    continue;
+                }
+                if (PREFETCHER != null) {
+                    PREFETCHER.taken(next);
+                    PREFETCHER.prefetch(getUpcomingWarcFiles(PREFETCH_FILES));
+                }
+                return next;
             }
+            return null;
+        }
+        finally {
+            LOCK.unlock();
+        }
+    }
+
+    private static boolean isSkipped(String warcFile) {
+        //Check it is no already processed. (can happen if run was interrupted and restarted)
+        if (WARCS_COMPLETED.contains(warcFile)) {
+            log.debug("Skipping, already processed:"+warcFile);
+            return true;
+        }
+
+        if (WARCS_QUARANTINED.contains(warcFile)) {
+            log.debug("Skipping, quarantined:"+warcFile);
+            return true;
+        }
+
+        // Skip some WARC files. Netarchive Suite/Heritrix produce metadata files that should not be indexex.
+        if (isIgnored(warcFile)) {
+            log.debug("Skipping metadata file:"+warcFile);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isIgnored(String warcFile) {
+        return IGNORE_PATTERN != null && IGNORE_PATTERN.length()>0 && warcFile.contains(IGNORE_PATTERN);
+    }
 
-          // Skip some WARC files. Netarchive Suite/Heritrix produce metadata files that should not be indexex.
-          if (IGNORE_PATTERN != null && IGNORE_PATTERN.length()>0) {            
-            if (next.contains(IGNORE_PATTERN)) {
-                log.debug("Skipping metadata file:"+next);
-                continue;
+    /**
+     * The next WARC-files in the queue that will be given to workers. Only looks a limited number of lines ahead.
+     */
+    private static List<String> getUpcomingWarcFiles(int number) {
+        List<String> upcoming = new ArrayList<String>();
+        int end = Math.min(WARCS_TO_INDEX.size(), number+MAX_PREFETCH_LOOKAHEAD);
+        for (int i=0;i<end && upcoming.size()<number;i++) {
+            String warcFile = WARCS_TO_INDEX.get(i);
+            if (!WARCS_COMPLETED.contains(warcFile) && !WARCS_QUARANTINED.contains(warcFile) && !isIgnored(warcFile)) {
+                upcoming.add(warcFile);
             }
-            return next;
-          }
         }
-        return null;
+        return upcoming;
+    }
+
+
+    /**
+     * Next WARC-file to retry. Will wait until the retry delay for the WARC-file has passed.
+     * Only used by the single retry worker, so the queue can not change while it waits.
+     * 
+     * @return The WARC-file or null if there are no more WARC-files to retry
+     */
+    public static String getNextRetryWarcFile() throws InterruptedException {
+        RetryEntry entry;
+        LOCK.lock();
+        try {
+            entry = RETRY_QUEUE.poll();
+        }
+        finally {
+            LOCK.unlock();
+        }
+        if (entry == null) {
+            return null;
+        }
+        long wait = entry.notBefore-System.currentTimeMillis();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+        return entry.warcFile;
+    }
+
+    /**
+     * @return The attempt number for next processing of the WARC-file. 1 for the first attempt.
+     */
+    public static int getAttempt(String warcFile) {
+        LOCK.lock();
+        try {
+            return WARCS_FAILED_ATTEMPTS.getOrDefault(warcFile, 0)+1;
+        }
+        finally {
+            LOCK.unlock();
+        }
     }
 
+    /**
+     * Write the failure to the FAILED file. Permanent failures are quarantined, transient failures are queued for retry if there are retries left.
+     * A truncated WARC-file that still fails after the last retry is also quarantined.
+     *
+     * @return true if the WARC-file was quarantined
+     */
+    public static boolean markWarcFileFailed(WarcFailure failure) throws IOException {
+        String warcFile = failure.getWarcFile();
+        LOCK.lock();
+        try {
+            Files.writeString(Paths.get(FAILED_FILE_LIST), (failure.toLine()+"\n"),StandardOpenOption.APPEND,StandardOpenOption.CREATE);
+
+            boolean retriesLeft = failure.getAttempt() <= MAX_RETRIES;
+            if (failure.getType() == WarcFailure.Type.PERMANENT || (failure.isTruncated() && !retriesLeft)) {
+                WARCS_QUARANTINED.add(warcFile);
+                WARCS_FAILED_ATTEMPTS.remove(warcFile);
+                Files.writeString(Paths.get(QUARANTINE_FILE_LIST), (warcFile+"\n"),StandardOpenOption.APPEND,StandardOpenOption.CREATE);
+                return true;
+            }
+            if (retriesLeft) {
+                WARCS_FAILED_ATTEMPTS.put(warcFile, failure.getAttempt());
+                RETRY_QUEUE.add(new RetryEntry(warcFile, System.currentTimeMillis()+1000L*RETRY_DELAY_SECONDS*failure.getAttempt()));
+            }
+            else {
+                WARCS_FAILED_ATTEMPTS.remove(warcFile);
+                log.warn("No more retries for WARC-file:"+warcFile +" attempts:"+failure.getAttempt());
+            }
+            return false;
+        }
+        catch(Exception e) {
+            log.error("Error marking warc file as failed:"+warcFile);
+            throw new IOException(e);
+        }
+        finally {
+            LOCK.unlock();
+        }
+    }
 
-    public static synchronized void markWarcFileCompleted(String warcFile) throws IOException{              
+    public static void markWarcFileCompleted(String warcFile) throws IOException{              
+        LOCK.lock();
         try {
             WARCS_COMPLETED.add(warcFile); //Add to completed memory HashSet         
+            WARCS_FAILED_ATTEMPTS.remove(warcFile); //Can be a retry
             Path completedPath=  Paths.get(OUTPUT_WARCS_COMPLETED_FILE_LIST);      
 
             //Append to a line to the file. Will create file if it does not exist
@@ -227,6 +588,9 @@ public class CdxIndexerWorkflow {
             log.error("Error marking warc file as completed:"+warcFile);
             throw new IOException(e);
         }
+        finally {
+            LOCK.unlock();
+        }
 
     }
 
@@ -260,7 +624,42 @@ public class CdxIndexerWorkflow {
         }
     }    
 
-    private static CdxFormat.Builder createCdxBuilder() {
+    private static HashMap<String,String> readFingerprints(String file) throws IOException{
+        try {
+            File fingerprintFile = new File(file);
+            if (!fingerprintFile.exists()) {
+                fingerprintFile.createNewFile();
+                log.info("Created new empty fingerprint file:"+file);
+            }
+
+            HashMap<String,String> fingerprints= new HashMap<String,String>();
+            for (String line : Files.readAllLines(Paths.get(file))) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    fingerprints.putIfAbsent(line.substring(0, tab), line.substring(tab+1));
+                }
+            }
+            return fingerprints;
+
+        } catch (IOException e) {
+            throw new IOException("Could not read from file:"+file);
+        }
+    }
+
+    private static class RetryEntry {
+        private final String warcFile;
+        private final long notBefore;
+
+        RetryEntry(String warcFile, long notBefore) {
+            this.warcFile=warcFile;
+            this.notBefore=notBefore;
+        }
+    }
+
+    /**
+     * The CDX format used for indexing. Also used by the {@link CdxAuditWorkflow}, so the audit queries the same keys as was indexed.
+     */
+    static CdxFormat.Builder createCdxBuilder() {
         CdxFormat.Builder cdxFormatBuilder = new CdxFormat.Builder().        
                 digestUnchanged().                
                 legend(CdxFormat.CDX11_LEGEND);
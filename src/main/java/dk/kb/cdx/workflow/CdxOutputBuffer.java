@@ -0,0 +1,230 @@
+package dk.kb.cdx.workflow;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A reusable {@link Writer} that encodes the CDX text from the jwarc {@link org.netpreserve.jwarc.cdx.CdxWriter} directly into UTF-8 bytes.
+ * Each worker thread owns one buffer and calls {@link #reset()} before each WARC-file, so the byte array is allocated once and then reused.
+ * This replaces the StringWriter + String + getBytes copies that was made for every WARC file before.
+ * <p>
+ * If the buffer is created with retain=false it will only count lines and bytes and never store the output. This is used for dry run.
+ * The last complete line is always available, it is used to find where in the WARC-file an error happened.
+ * <p>
+ * The encoding is identical to String.getBytes(UTF_8): Unpaired surrogates are written as '?'.
+ * <p>
+ * The buffer can grow to {@link #MAX_CAPACITY}. Writing more throws a {@link CdxOutputTooLargeException}.
+ */
+public class CdxOutputBuffer extends Writer {
+
+    private static final int INITIAL_CAPACITY = 1024*1024; // 1MB
+    private static final int MAX_RETAINED_CAPACITY = 64*1024*1024; // Do not keep more than 64MB allocated between WARC files
+    static final int MAX_CAPACITY = Integer.MAX_VALUE-8; // Some JVMs can not allocate arrays up to Integer.MAX_VALUE
+
+    private final boolean retain;
+    private byte[] buffer;
+    private int size=0;
+    private long byteCount=0;
+    private long lineCount=0;
+    private char pendingHighSurrogate=0;
+    private int currentLineStart=0;
+    private int lastLineStart=-1;
+    private int lastLineEnd=-1;
+    private byte[] lineBuffer=new byte[1024]; //Current and last line when output is not retained
+    private byte[] lastLineBuffer=new byte[1024];
+    private int lineSize=0;
+
+    /**
+     * @param retain If false the bytes are only counted and not stored. (dry run)
+     */
+    public CdxOutputBuffer(boolean retain) {
+        this.retain=retain;
+        this.buffer = retain ? new byte[INITIAL_CAPACITY] : new byte[0];
+    }
+
+    /**
+     * Clear the buffer before next WARC file. The byte array is kept unless it has grown very large from a single huge WARC file.
+     */
+    public void reset() {
+        size=0;
+        byteCount=0;
+        lineCount=0;
+        pendingHighSurrogate=0;
+        currentLineStart=0;
+        lastLineStart=-1;
+        lastLineEnd=-1;
+        lineSize=0;
+        if (buffer.length > MAX_RETAINED_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        writeChar((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i=off;i<off+len;i++) {
+            writeChar(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i=off;i<off+len;i++) {
+            writeChar(str.charAt(i));
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to flush
+    }
+
+    /**
+     * Does not release the buffer, it will be reused after {@link #reset()}. An unpaired high surrogate at the end is written as '?'.
+     */
+    @Override
+    public void close() throws IOException {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate=0;
+            putByte('?');
+        }
+    }
+
+    /**
+     * @return The internal byte array. Only the first {@link #size()} bytes are valid.
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * @return Number of valid bytes in {@link #array()}. Is 0 if the buffer does not retain output.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Number of UTF-8 bytes written since last reset. Also counted if output is not retained.
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return Number of lines (newline characters) written since last reset. This includes the CDX header line.
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return The last complete line without newline, or null if no line has been written since last reset.
+     */
+    public String getLastLine() {
+        if (lastLineEnd < 0) {
+            return null;
+        }
+        if (retain) {
+            return new String(buffer, lastLineStart, lastLineEnd-lastLineStart, StandardCharsets.UTF_8);
+        }
+        return new String(lastLineBuffer, 0, lastLineEnd, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return A copy of the valid bytes. Only used for tests and logging, the workflow posts the internal array directly.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private void writeChar(char c) throws IOException {
+        if (pendingHighSurrogate != 0) {
+            char high=pendingHighSurrogate;
+            pendingHighSurrogate=0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                putByte(0xF0 | (codePoint >> 18));
+                putByte(0x80 | ((codePoint >> 12) & 0x3F));
+                putByte(0x80 | ((codePoint >> 6) & 0x3F));
+                putByte(0x80 | (codePoint & 0x3F));
+                return;
+            }
+            putByte('?'); // Unpaired high surrogate, continue with current char
+        }
+
+        if (c < 0x80) {
+            putByte(c);
+            if (c == '\n') {
+                lineCount++;
+                endLine();
+            }
+        }
+        else if (c < 0x800) {
+            putByte(0xC0 | (c >> 6));
+            putByte(0x80 | (c & 0x3F));
+        }
+        else if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate=c;
+        }
+        else if (Character.isLowSurrogate(c)) {
+            putByte('?'); // Unpaired low surrogate
+        }
+        else {
+            putByte(0xE0 | (c >> 12));
+            putByte(0x80 | ((c >> 6) & 0x3F));
+            putByte(0x80 | (c & 0x3F));
+        }
+    }
+
+    private void endLine() {
+        if (retain) {
+            lastLineStart=currentLineStart;
+            lastLineEnd=size-1;
+            currentLineStart=size;
+            return;
+        }
+        byte[] swap=lastLineBuffer;
+        lastLineBuffer=lineBuffer;
+        lineBuffer=swap;
+        lastLineEnd=lineSize-1;
+        lineSize=0;
+    }
+
+    private void putByte(int b) throws IOException {
+        byteCount++;
+        if (!retain) {
+            if (lineSize == lineBuffer.length) {
+                lineBuffer = Arrays.copyOf(lineBuffer, newCapacity(lineBuffer.length, 1024));
+            }
+            lineBuffer[lineSize++] = (byte) b;
+            return;
+        }
+        if (size == buffer.length) {
+            buffer = Arrays.copyOf(buffer, newCapacity(buffer.length, INITIAL_CAPACITY));
+        }
+        buffer[size++] = (byte) b;
+    }
+
+    /**
+     * Double the capacity, but not above {@link #MAX_CAPACITY}. Doubling in int would overflow to a negative size at 1GB.
+     *
+     * @param capacity Current capacity
+     * @param minCapacity Capacity to grow an empty buffer to
+     * @throws CdxOutputTooLargeException If the capacity is already {@link #MAX_CAPACITY}
+     */
+    static int newCapacity(int capacity, int minCapacity) throws CdxOutputTooLargeException {
+        if (capacity >= MAX_CAPACITY) {
+            throw new CdxOutputTooLargeException(MAX_CAPACITY);
+        }
+        return (int) Math.min(MAX_CAPACITY, Math.max(minCapacity, 2L*capacity));
+    }
+
+}
@@ -0,0 +1,16 @@
+package dk.kb.cdx.workflow;
+
+import java.io.IOException;
+
+/**
+ * The CDX output for a WARC-file is larger than a byte array can hold. The WARC-file will fail again, so it is quarantined.
+ */
+public class CdxOutputTooLargeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CdxOutputTooLargeException(int capacity) {
+        super("CDX output is larger than the max buffer size of bytes:"+capacity);
+    }
+
+}
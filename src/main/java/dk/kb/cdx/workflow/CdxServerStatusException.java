@@ -0,0 +1,31 @@
+package dk.kb.cdx.workflow;
+
+import java.io.IOException;
+
+/**
+ * The CDX server answered with a HTTP status that is not 200. Different from connection errors, where the server did not answer at all.
+ */
+public class CdxServerStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public CdxServerStatusException(int status, String body) {
+        super("Unexpected http status:"+status +" with body:"+body);
+        this.status=status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * OutbackCDX answers 400 when it can not parse the posted CDX data. The data will be rejected again, so the WARC-file is quarantined.
+     * Other statuses (401, 403, 404, 413, 5xx) are a problem with the server or the configuration, not with the WARC-file.
+     */
+    public boolean isRejectedData() {
+        return status == 400;
+    }
+
+}
@@ -0,0 +1,236 @@
+package dk.kb.cdx.workflow;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Compression of the CDX data posted to the CDX server with the HTTP header Content-Encoding. CDX text compresses 8-10 times.
+ * <p>
+ * The data is compressed while the HTTP client reads it, so the compressed body is never held in memory.
+ * <p>
+ * Not all CDX servers support compressed request bodies. The first posts to an endpoint are checked, and if the server rejects
+ * the encoding (HTTP 415) or adds no records, the endpoint is marked as unsupported and all posts to it are sent uncompressed.
+ * A 400 can be the server failing to parse the compressed bytes or bad CDX data, so the data is sent again uncompressed. If that is accepted
+ * the endpoint is marked as unsupported, if it is also rejected the data was bad.
+ * When a post has been accepted the endpoint is marked as supported.
+ */
+public class PostCompression {
+    private static final Logger log = LoggerFactory.getLogger(PostCompression.class);
+
+    public enum Encoding {
+        NONE, GZIP, DEFLATE;
+
+        /**
+         * @param value 'none', 'gzip' or 'deflate'. Null or blank is none.
+         */
+        public static Encoding parse(String value) {
+            if (value == null || value.isBlank()) {
+                return NONE;
+            }
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+
+        /**
+         * @return The value for the Content-Encoding header
+         */
+        public String headerValue() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Encoding encoding;
+    private final ConcurrentHashMap<String, Boolean> endpointSupport = new ConcurrentHashMap<String, Boolean>(); //Not in the map if unknown
+
+    public PostCompression(Encoding encoding) {
+        this.encoding=encoding;
+    }
+
+    /**
+     * @return The encoding to use for the endpoint. NONE if compression is disabled or the endpoint does not support it.
+     */
+    public Encoding getEncoding(String cdxServer) {
+        if (encoding == Encoding.NONE || Boolean.FALSE.equals(endpointSupport.get(getEndpoint(cdxServer)))) {
+            return Encoding.NONE;
+        }
+        return encoding;
+    }
+
+    /**
+     * @return true if a compressed post to the endpoint has been accepted before
+     */
+    public boolean isSupported(String cdxServer) {
+        return Boolean.TRUE.equals(endpointSupport.get(getEndpoint(cdxServer)));
+    }
+
+    public void markSupported(String cdxServer) {
+        if (endpointSupport.putIfAbsent(getEndpoint(cdxServer), Boolean.TRUE) == null) {
+            log.info("CDX server accepts Content-Encoding:"+encoding.headerValue() +" endpoint:"+getEndpoint(cdxServer));
+        }
+    }
+
+    public void markUnsupported(String cdxServer) {
+        if (endpointSupport.put(getEndpoint(cdxServer), Boolean.FALSE) == null) {
+            log.warn("CDX server does not accept Content-Encoding:"+encoding.headerValue() +". Sending uncompressed to endpoint:"+getEndpoint(cdxServer));
+        }
+    }
+
+    /**
+     * Stream that compresses the data while it is read.
+     *
+     * @param data The data. Only the first length bytes are used.
+     * @param length Number of bytes
+     * @param encoding GZIP or DEFLATE
+     */
+    public static InputStream compress(byte[] data, int length, Encoding encoding) {
+        ByteArrayInputStream input = new ByteArrayInputStream(data, 0, length);
+        switch (encoding) {
+            case GZIP:
+                return new GzipCompressingInputStream(input);
+            case DEFLATE:
+                return new DeflaterInputStream(input); //zlib format as required by Content-Encoding: deflate
+            default:
+                return input;
+        }
+    }
+
+    /**
+     * Request body that is compressed while the HTTP client sends it. The HTTP client can subscribe more than once
+     * (a request that is sent again), so a new compressing stream is made from the data for each subscription.
+     *
+     * @param sentBody Set to the stream of the latest subscription. Its count is the bytes sent over the network.
+     */
+    public static BodyPublisher publisher(byte[] data, int length, Encoding encoding, AtomicReference<CountingInputStream> sentBody) {
+        return BodyPublishers.ofInputStream(() -> {
+            CountingInputStream body = new CountingInputStream(compress(data, length, encoding));
+            sentBody.set(body);
+            return body;
+        });
+    }
+
+    /**
+     * The scheme, host, port and path of the url. Parameters as 'badLines=skip' are not part of the endpoint.
+     */
+    static String getEndpoint(String cdxServer) {
+        URI uri = URI.create(cdxServer);
+        return uri.getScheme()+"://"+uri.getAuthority()+uri.getPath();
+    }
+
+    /**
+     * Counts the bytes read, used to report the bytes sent over the network.
+     */
+    public static class CountingInputStream extends FilterInputStream {
+        private long count=0;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * GZIP format (RFC 1952) produced while reading: header, raw deflate data and trailer with CRC32 and size of the input.
+     * The JDK only has GZIPOutputStream that compresses when writing.
+     */
+    private static class GzipCompressingInputStream extends SequenceInputStream {
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final Deflater deflater;
+
+        GzipCompressingInputStream(InputStream input) {
+            this(new CheckedInputStream(input, new CRC32()), new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        }
+
+        private GzipCompressingInputStream(CheckedInputStream input, Deflater deflater) {
+            super(Collections.enumeration(Arrays.asList(
+                    new ByteArrayInputStream(HEADER),
+                    new DeflaterInputStream(input, deflater),
+                    new TrailerInputStream(input, deflater))));
+            this.deflater=deflater;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            deflater.end();
+        }
+    }
+
+    /**
+     * The trailer can only be made when all input has been compressed, so it is made on the first read.
+     */
+    private static class TrailerInputStream extends InputStream {
+        private final CheckedInputStream input;
+        private final Deflater deflater;
+        private ByteArrayInputStream trailer=null;
+
+        TrailerInputStream(CheckedInputStream input, Deflater deflater) {
+            this.input=input;
+            this.deflater=deflater;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return getTrailer().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return getTrailer().read(b, off, len);
+        }
+
+        private ByteArrayInputStream getTrailer() {
+            if (trailer == null) {
+                long crc = input.getChecksum().getValue();
+                long size = deflater.getBytesRead();
+                byte[] bytes = new byte[8];
+                for (int i=0;i<4;i++) {
+                    bytes[i] = (byte) (crc >> (8*i));
+                    bytes[4+i] = (byte) (size >> (8*i));
+                }
+                trailer = new ByteArrayInputStream(bytes);
+            }
+            return trailer;
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+package dk.kb.cdx.workflow;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Direct read buffers shared by the workers and the prefetcher. A buffer is taken after the read permit for the mount,
+ * and given back when the WARC-file has been read. So the direct memory follows the number of reads in flight, not the number of worker threads.
+ * <p>
+ * Buffers are allocated the first time they are needed and then reused. Direct memory is only released by the GC, so buffers are never thrown away.
+ * At most maxBuffers are allocated, a reader waits for a free buffer when all are in use.
+ * <p>
+ * Usage:
+ * <pre>
+ * ByteBuffer buffer = pool.take();
+ * try {
+ *   ...
+ * }
+ * finally {
+ *   pool.release(buffer);
+ * }
+ * </pre>
+ */
+public class ReadBufferPool {
+    private static final Logger log = LoggerFactory.getLogger(ReadBufferPool.class);
+    private static final String MAX_DIRECT_MEMORY_OPTION = "-XX:MaxDirectMemorySize=";
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final Semaphore available;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    /**
+     * @param bufferSize Size of each buffer. Will be rounded up to a multiple of 4KB.
+     * @param maxBuffers Max number of buffers allocated.
+     */
+    public ReadBufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = WarcChannels.alignedSize(bufferSize);
+        this.maxBuffers = Math.max(1, maxBuffers);
+        this.available = new Semaphore(this.maxBuffers);
+    }
+
+    /**
+     * Create the pool for a workflow. One buffer for each read in flight, that is maxReadsPerMount if it is set, otherwise one for each reader.
+     *
+     * @param readBufferMb Size of each buffer in MB
+     * @param readers Number of threads that read WARC-files
+     * @param maxReadsPerMount 0 is no limit
+     * @return null if readBufferMb is 0 and jwarc reads the files with its default buffer
+     */
+    public static ReadBufferPool create(int readBufferMb, int readers, int maxReadsPerMount) {
+        if (readBufferMb <= 0) {
+            return null;
+        }
+        int maxReads = maxReadsPerMount > 0 ? Math.min(readers, maxReadsPerMount) : readers;
+        ReadBufferPool pool = forReads(readBufferMb*1024*1024, maxReads);
+        log.info("Max read buffers:"+pool.getMaxBuffers() +" of MB:"+readBufferMb);
+        return pool;
+    }
+
+    /**
+     * Create a pool for the number of reads that can be in flight. The number of buffers is reduced so they use at most half of the max direct memory.
+     *
+     * @param bufferSize Size of each buffer
+     * @param maxReads Max number of WARC-files read at the same time
+     */
+    public static ReadBufferPool forReads(int bufferSize, int maxReads) {
+        long budget = getMaxDirectMemory()/2; //Leave room for the direct buffers used by the JDK (sockets, file channels)
+        int byMemory = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget/WarcChannels.alignedSize(bufferSize)));
+        if (byMemory < maxReads) {
+            log.warn(String.format(Locale.ROOT, "Only %d read buffers of MB:%.1f fit in the direct memory limit of MB:%d. Reads will wait for a free buffer. Increase %s or lower read_buffer_mb",
+                    byMemory, bufferSize/(1024d*1024d), getMaxDirectMemory()/(1024*1024), MAX_DIRECT_MEMORY_OPTION));
+        }
+        return new ReadBufferPool(bufferSize, Math.min(maxReads, byMemory));
+    }
+
+    /**
+     * Take a free buffer, allocate a new one or wait for one to be released.
+     */
+    public ByteBuffer take() throws InterruptedException {
+        available.acquire();
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = WarcChannels.allocate(bufferSize);
+            allocated.incrementAndGet();
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        free.add(buffer);
+        available.release();
+    }
+
+    /**
+     * @return Number of buffers allocated so far
+     */
+    public int getAllocated() {
+        return allocated.get();
+    }
+
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * The JVM limits direct memory to -XX:MaxDirectMemorySize, and to the max heap size if it is not set.
+     */
+    static long getMaxDirectMemory() {
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith(MAX_DIRECT_MEMORY_OPTION)) {
+                try {
+                    return parseSize(argument.substring(MAX_DIRECT_MEMORY_OPTION.length()));
+                }
+                catch(NumberFormatException e) {
+                    break;
+                }
+            }
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * @param size JVM size option value as 512m or 2g
+     */
+    static long parseSize(String size) {
+        String value = size.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        switch (value.charAt(value.length()-1)) {
+            case 'k': unit = 1024L; break;
+            case 'm': unit = 1024L*1024; break;
+            case 'g': unit = 1024L*1024*1024; break;
+            case 't': unit = 1024L*1024*1024*1024; break;
+            default: return Long.parseLong(value);
+        }
+        return Long.parseLong(value.substring(0, value.length()-1))*unit;
+    }
+
+}
@@ -0,0 +1,88 @@
+package dk.kb.cdx.workflow;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Limits the load on the real resources instead of limiting the number of worker threads.
+ * <ul>
+ * <li> Number of requests in flight to the CDX server </li>
+ * <li> Number of WARC-files read at the same time from each mount (file store) </li>
+ * </ul>
+ * <p>
+ * A limit of 0 means no limit. This is the default, and then the number of worker threads is the only limit as before.
+ * <p>
+ * Usage:
+ * <pre>
+ * Semaphore permits = limiter.getReadPermits(path);
+ * permits.acquire();
+ * try {
+ *   ...
+ * }
+ * finally {
+ *   permits.release();
+ * }
+ * </pre>
+ */
+public class ResourceLimiter {
+    private static final Logger log = LoggerFactory.getLogger(ResourceLimiter.class);
+    private static final String UNKNOWN_MOUNT = "unknown";
+
+    private final int maxReadsPerMount;
+    private final Semaphore serverPermits;
+    private final ConcurrentHashMap<String, Semaphore> mountPermits = new ConcurrentHashMap<String, Semaphore>();
+    private final ConcurrentHashMap<Path, String> folderMounts = new ConcurrentHashMap<Path, String>(); //Looking up the file store is slow, so cache it for each folder
+
+    /**
+     * @param maxServerRequests Max number of requests in flight to the CDX server. 0 is no limit.
+     * @param maxReadsPerMount Max number of WARC-files read at the same time from each mount. 0 is no limit.
+     */
+    public ResourceLimiter(int maxServerRequests, int maxReadsPerMount) {
+        this.serverPermits = newPermits(maxServerRequests);
+        this.maxReadsPerMount = maxReadsPerMount;
+    }
+
+    /**
+     * @return The permits for requests to the CDX server
+     */
+    public Semaphore getServerPermits() {
+        return serverPermits;
+    }
+
+    /**
+     * @param warcFile The WARC-file that will be read
+     * @return The permits for reading from the mount the WARC-file is stored on
+     */
+    public Semaphore getReadPermits(Path warcFile) {
+        return mountPermits.computeIfAbsent(getMount(warcFile), mount -> newPermits(maxReadsPerMount));
+    }
+
+    private String getMount(Path warcFile) {
+        Path folder = warcFile.toAbsolutePath().getParent();
+        if (folder == null) {
+            return UNKNOWN_MOUNT;
+        }
+        return folderMounts.computeIfAbsent(folder, f -> {
+            try {
+                String mount = Files.getFileStore(f).toString();
+                log.debug("Folder:"+f +" is on mount:"+mount);
+                return mount;
+            }
+            catch(IOException e) {
+                return UNKNOWN_MOUNT; //Folder does not exist. Reading the WARC-file will fail anyway
+            }
+        });
+    }
+
+    private static Semaphore newPermits(int limit) {
+        return new Semaphore(limit > 0 ? limit : Integer.MAX_VALUE);
+    }
+
+}
@@ -0,0 +1,169 @@
+package dk.kb.cdx.workflow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BooleanSupplier;
+
+/**
+ * <p>
+ * Read channels for WARC-files that are given to the jwarc WarcReader instead of letting it open the file with its small default buffer.
+ * <ul>
+ * <li> Buffered: Reads the file in large blocks aligned to the block size. Best for network storage (NFS) where each read has a high latency. </li>
+ * <li> Memory mapped: Maps the file in windows and copies from memory. Best for local disks. </li>
+ * </ul>
+ * Both channels read the file sequentially from the start, which is how jwarc reads when indexing.
+ */
+public class WarcChannels {
+
+    static final int ALIGNMENT = 4096;
+    static final int MAP_WINDOW_SIZE = 64*1024*1024; // Mapped buffers are only released by the GC, so keep the windows small
+
+    /**
+     * Allocate a read buffer. Direct memory is only released by the GC, so the buffer must be reused, see {@link ReadBufferPool}.
+     *
+     * @param bufferSize Size of each read. Will be rounded up to a multiple of 4KB.
+     */
+    public static ByteBuffer allocate(int bufferSize) {
+        return ByteBuffer.allocateDirect(alignedSize(bufferSize));
+    }
+
+    /**
+     * Open a read channel for the WARC-file.
+     *
+     * @param warcFile The WARC-file
+     * @param buffer Buffer from {@link #allocate(int)}. Each read fills the buffer. Must not be used by another channel until this channel is closed.
+     * @param memoryMapped Map the file into memory instead of reading it. buffer is then not used and can be null.
+     */
+    public static ReadableByteChannel open(Path warcFile, ByteBuffer buffer, boolean memoryMapped) throws IOException {
+        FileChannel channel = FileChannel.open(warcFile, StandardOpenOption.READ);
+        if (memoryMapped) {
+            return new MappedChannel(channel);
+        }
+        return new BufferedChannel(channel, buffer);
+    }
+
+    /**
+     * Read the file and throw the bytes away, so the file is in the page cache of the OS when a worker reads it.
+     *
+     * @param stop Checked before each block is read. Reading stops when it returns true.
+     * @return number of bytes read
+     */
+    public static long warm(Path warcFile, ByteBuffer buffer, BooleanSupplier stop) throws IOException {
+        long total=0;
+        try (FileChannel channel = FileChannel.open(warcFile, StandardOpenOption.READ)) {
+            int read;
+            buffer.clear();
+            while (!stop.getAsBoolean() && (read = channel.read(buffer)) >= 0) {
+                total += read;
+                buffer.clear();
+            }
+        }
+        return total;
+    }
+
+    static int alignedSize(int bufferSize) {
+        int blocks = Math.max(1, (bufferSize+ALIGNMENT-1)/ALIGNMENT);
+        return blocks*ALIGNMENT;
+    }
+
+    /**
+     * Reads the file in full blocks, so all reads except the last start and end at an offset that is a multiple of the block size.
+     */
+    private static class BufferedChannel implements ReadableByteChannel {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private boolean eof=false;
+
+        BufferedChannel(FileChannel channel, ByteBuffer buffer) {
+            this.channel=channel;
+            this.buffer=buffer;
+            this.buffer.clear().flip(); // Start empty
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!buffer.hasRemaining()) {
+                fill();
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+            }
+            int length = Math.min(dst.remaining(), buffer.remaining());
+            int limit = buffer.limit();
+            buffer.limit(buffer.position()+length);
+            dst.put(buffer);
+            buffer.limit(limit);
+            return length;
+        }
+
+        private void fill() throws IOException {
+            buffer.clear();
+            while (!eof && buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    eof=true;
+                }
+            }
+            buffer.flip();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Maps the file into memory one window at a time. Files larger than 2GB are supported since each window is mapped separately.
+     */
+    private static class MappedChannel implements ReadableByteChannel {
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart=0;
+        private MappedByteBuffer window=null;
+
+        MappedChannel(FileChannel channel) throws IOException {
+            this.channel=channel;
+            this.size=channel.size();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (window == null || !window.hasRemaining()) {
+                long nextStart = window == null ? 0 : windowStart+window.capacity();
+                if (nextStart >= size) {
+                    return -1;
+                }
+                windowStart = nextStart;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAP_WINDOW_SIZE, size-windowStart));
+            }
+            int length = Math.min(dst.remaining(), window.remaining());
+            ByteBuffer slice = window.slice();
+            slice.limit(length);
+            dst.put(slice);
+            window.position(window.position()+length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            window=null;
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+package dk.kb.cdx.workflow;
+
+import java.io.EOFException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.ZipException;
+
+import org.netpreserve.jwarc.ParsingException;
+
+/**
+ * <p>
+ * A WARC-file that failed to index. Written as a line in the FAILED sidecar file:
+ * <pre>
+ * path TAB type TAB attempt TAB offset TAB cause
+ * </pre>
+ * <ul>
+ * <li> type: TRANSIENT (read error, file not found, truncated file) or PERMANENT (corrupt WARC-file, CDX data rejected by the CDX server with status 400, CDX output too large) </li>
+ * <li> attempt: 1 for the first attempt, higher for retries </li>
+ * <li> offset: Offset in the WARC-file after the last record that was indexed. The failing record is at or after this offset. -1 if unknown. </li>
+ * <li> cause: Exception class and message </li>
+ * </ul>
+ */
+public class WarcFailure {
+
+    public enum Type {TRANSIENT, PERMANENT}
+
+    private final String warcFile;
+    private final Type type;
+    private final int attempt;
+    private final long offset;
+    private final String cause;
+    private final boolean truncated;
+
+    public WarcFailure(String warcFile, Type type, int attempt, long offset, String cause) {
+        this(warcFile, type, attempt, offset, cause, false);
+    }
+
+    public WarcFailure(String warcFile, Type type, int attempt, long offset, String cause, boolean truncated) {
+        this.warcFile=warcFile;
+        this.type=type;
+        this.attempt=attempt;
+        this.offset=offset;
+        this.cause=cause;
+        this.truncated=truncated;
+    }
+
+    /**
+     * Create the failure from the exception thrown when indexing the WARC-file. The cause is the exception inside any wrappers.
+     */
+    public static WarcFailure of(String warcFile, Throwable e, int attempt, long offset) {
+        Throwable cause = unwrap(e);
+        return new WarcFailure(warcFile, classify(cause), attempt, offset, cause.getClass().getSimpleName()+": "+cause.getMessage(), isTruncated(cause));
+    }
+
+    /**
+     * Corrupt WARC-files, CDX data rejected by the CDX server and CDX output too large for the buffer will fail again. Only the known parse exceptions
+     * from jwarc and the decompression are permanent, everything else may work in a later attempt.
+     * An unexpected end of file is transient, the WARC-file can still be being copied to the mount.
+     */
+    static Type classify(Throwable e) {
+        for (Throwable t = unwrap(e); t != null; t = t.getCause()) {
+            if (t instanceof EOFException) {
+                return Type.TRANSIENT;
+            }
+            if (t instanceof ParsingException || t instanceof ZipException || t instanceof CdxOutputTooLargeException) {
+                return Type.PERMANENT;
+            }
+            if (t instanceof CdxServerStatusException) {
+                return ((CdxServerStatusException) t).isRejectedData() ? Type.PERMANENT : Type.TRANSIENT;
+            }
+        }
+        return Type.TRANSIENT; // Read errors, missing files and stale handles on network mounts, unknown runtime errors
+    }
+
+    /**
+     * An unexpected end of file. Either the WARC-file is still being copied or it is truncated for good, which is only known when the retries also fail.
+     */
+    static boolean isTruncated(Throwable e) {
+        for (Throwable t = unwrap(e); t != null; t = t.getCause()) {
+            if (t instanceof EOFException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the exceptions that only wrap the real cause, like UncheckedIOException from a stream or ExecutionException from an executor.
+     */
+    static Throwable unwrap(Throwable e) {
+        Throwable t = e;
+        while (t.getCause() != null && isWrapper(t)) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    private static boolean isWrapper(Throwable t) {
+        return t instanceof UncheckedIOException || t instanceof ExecutionException || t instanceof CompletionException
+                || t instanceof UndeclaredThrowableException || t.getClass() == RuntimeException.class;
+    }
+
+    public String getWarcFile() {
+        return warcFile;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getAttempt() {
+        return attempt;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public String getCause() {
+        return cause;
+    }
+
+    /**
+     * @return True if the WARC-file ended unexpectedly. It is quarantined if it is still truncated after the last retry.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return The line for the FAILED file, without newline. Tabs and newlines in the cause are replaced with space.
+     */
+    public String toLine() {
+        return warcFile+"\t"+type+"\t"+attempt+"\t"+offset+"\t"+String.valueOf(cause).replaceAll("[\t\r\n]", " ");
+    }
+
+}
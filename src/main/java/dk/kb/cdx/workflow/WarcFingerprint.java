@@ -0,0 +1,77 @@
+package dk.kb.cdx.workflow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Cheap content signature of a WARC-file. Used to detect copies of the same WARC-file stored under different paths (replicas, migrations).
+ * <p>
+ * The fingerprint is the file size and a SHA-256 of the first and last 64KB of the file. Only 128KB is read no matter the size of the WARC-file.
+ * The first block includes the header of the first record with the WARC-Record-ID, so this is also part of the fingerprint.
+ * <p>
+ * Format: {@code <size>-<sha256 hex>}
+ */
+public class WarcFingerprint {
+
+    static final int BLOCK_SIZE = 64*1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Calculate the fingerprint for the file.
+     *
+     * @param warcFile full path to the WARC-file
+     * @return fingerprint as {@code <size>-<sha256 hex>}
+     * @throws IOException if the file can not be read
+     */
+    public static String getFingerprint(Path warcFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(warcFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MessageDigest digest = getDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+
+            readBlock(channel, 0, buffer);
+            digest.update(buffer);
+
+            if (size > BLOCK_SIZE) {
+                readBlock(channel, Math.max(BLOCK_SIZE, size-BLOCK_SIZE), buffer);
+                digest.update(buffer);
+            }
+            return size+"-"+toHex(digest.digest());
+        }
+    }
+
+    private static void readBlock(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position+buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+    }
+
+    private static MessageDigest getDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not supported", e); //Will not happen, required by all JVMs
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length*2];
+        for (int i=0;i<bytes.length;i++) {
+            chars[i*2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i*2+1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+}
@@ -0,0 +1,114 @@
+package dk.kb.cdx.workflow;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Reads the next WARC-files in the queue on a background thread while the workers parse the current files.
+ * The bytes are thrown away, the purpose is to have the file in the page cache of the OS when a worker starts on it.
+ * This overlaps the slow reads from network storage with the parsing.
+ * <p>
+ * The workflow calls {@link #prefetch(List)} with the next files in the queue every time a worker takes a file.
+ * A file is only read once, and files already taken by a worker are not read.
+ * A read counts against the read limit of the mount like the reads of the workers, and stops
+ * between blocks if a worker takes the file while it is being read.
+ */
+public class WarcPrefetcher {
+    private static final Logger log = LoggerFactory.getLogger(WarcPrefetcher.class);
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "warc-prefetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ReadBufferPool readBuffers;
+    private final Set<String> submitted = ConcurrentHashMap.newKeySet(); // Submitted and not yet taken by a worker
+    private final AtomicLong prefetchedBytes = new AtomicLong();
+    private final ResourceLimiter resourceLimiter;
+
+    /**
+     * @param readBuffers A buffer is taken for each file while it is read. Can be shared with the workers.
+     * @param resourceLimiter Read permits per mount, shared with the workers
+     */
+    public WarcPrefetcher(ReadBufferPool readBuffers, ResourceLimiter resourceLimiter) {
+        this.readBuffers = readBuffers;
+        this.resourceLimiter = resourceLimiter;
+    }
+
+    /**
+     * Submit the files that have not been submitted before.
+     *
+     * @param upcoming The next WARC-files in the queue, in the order they will be taken.
+     */
+    public void prefetch(List<String> upcoming) {
+        for (String warcFile : upcoming) {
+            if (submitted.add(warcFile)) {
+                executor.submit(() -> warm(warcFile));
+            }
+        }
+    }
+
+    /**
+     * A worker has started on the file. Will not be read if it is still in the prefetch queue,
+     * and a read in progress stops at the next block.
+     */
+    public void taken(String warcFile) {
+        submitted.remove(warcFile);
+    }
+
+    /**
+     * @return Number of bytes read by the prefetch thread
+     */
+    public long getPrefetchedBytes() {
+        return prefetchedBytes.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void warm(String warcFile) {
+        if (!submitted.contains(warcFile)) {
+            return; // Too late, the worker is already reading it
+        }
+        try {
+            Path path = Paths.get(warcFile);
+            Semaphore readPermits = resourceLimiter.getReadPermits(path);
+            readPermits.acquire();
+            try {
+                ByteBuffer buffer = readBuffers.take();
+                try {
+                    long start=System.currentTimeMillis();
+                    long bytes = WarcChannels.warm(path, buffer, () -> !submitted.contains(warcFile));
+                    prefetchedBytes.addAndGet(bytes);
+                    log.debug("Prefetched:"+warcFile +" bytes:"+bytes +" in millis:"+(System.currentTimeMillis()-start));
+                }
+                finally {
+                    readBuffers.release(buffer);
+                }
+            }
+            finally {
+                readPermits.release();
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt(); // Shut down
+        }
+        catch(Exception e) {
+            log.debug("Could not prefetch:"+warcFile +" error:"+e.getMessage()); // The worker will log the error when it reads the file
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package dk.kb.cdx.workflow;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the executor for the workers. This is the Java 11 version that always use platform threads.
+ * <p>
+ * The jar is a multi-release jar. When running on Java 21 or later the version in src/main/java21 is used instead, which can run the workers on virtual threads.
+ */
+public class WorkerExecutors {
+    private static final Logger log = LoggerFactory.getLogger(WorkerExecutors.class);
+
+    /**
+     * @return true if the runtime can run the workers on virtual threads
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return false;
+    }
+
+    /**
+     * @param virtualThreads Use virtual threads for the workers. Ignored with a warning since it requires Java 21.
+     * @return executor to start the workers with
+     */
+    public static ExecutorService newWorkerExecutor(boolean virtualThreads) {
+        if (virtualThreads) {
+            log.warn("Virtual threads require Java 21 or later. Runtime version is:"+System.getProperty("java.version")+". Using platform threads");
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+}
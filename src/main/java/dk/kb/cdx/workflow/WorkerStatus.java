@@ -3,6 +3,13 @@ package dk.kb.cdx.workflow;
 public class WorkerStatus {
     private int completed=0;
     private int errors=0;
+    private long records=0;
+    private long bytes=0;
+    private int duplicates=0;
+    private int quarantined=0;
+    private long readBytes=0;
+    private long readMillis=0;
+    private long wireBytes=0;
         
     public WorkerStatus() {
                 
@@ -16,6 +23,37 @@ public class WorkerStatus {
         errors++;
     }
 
+    public void increaseDuplicates() {
+        duplicates++;
+    }
+
+    public void increaseQuarantined() {
+        quarantined++;
+    }
+
+    public void addRecords(long records) {
+        this.records += records;
+    }
+
+    public void addBytes(long bytes) {
+        this.bytes += bytes;
+    }
+
+    /**
+     * Add a WARC-file that has been read and parsed.
+     */
+    public void addRead(long bytes, long millis) {
+        readBytes += bytes;
+        readMillis += millis;
+    }
+
+    /**
+     * Add the bytes sent to the CDX server for a post. Less than the CDX bytes if the post was compressed.
+     */
+    public void addWireBytes(long bytes) {
+        wireBytes += bytes;
+    }
+
     public int getCompleted() {
         return completed;
     }
@@ -24,7 +62,54 @@ public class WorkerStatus {
     public int getErrors() {
         return errors;
     }
-    
-    
+
+    /**
+     * @return Number of WARC-files skipped because a copy with same fingerprint was already indexed.
+     */
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return Number of WARC-files with a permanent failure. These are skipped if the workflow is restarted.
+     */
+    public int getQuarantined() {
+        return quarantined;
+    }
+
+    /**
+     * @return Number of CDX records (lines without header) for completed WARC files.
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return Number of UTF-8 bytes of CDX output for completed WARC files.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Bytes sent to the CDX server for posts that were accepted.
+     */
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * @return Size of the WARC-files read and parsed, also files that failed to post.
+     */
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    /**
+     * @return Time spent reading and parsing WARC-files.
+     */
+    public long getReadMillis() {
+        return readMillis;
+    }
 
 }
@@ -0,0 +1,32 @@
+package dk.kb.cdx.workflow;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executor for the workers. This is the Java 21 version in the multi-release jar, see src/main/java for the Java 11 version.
+ * <p>
+ * With virtual threads the workers do not block a platform thread when waiting for file reads or the CDX server.
+ * The number of workers can then be raised, and the load is limited by the {@link ResourceLimiter} instead.
+ */
+public class WorkerExecutors {
+
+    /**
+     * @return true if the runtime can run the workers on virtual threads
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return true;
+    }
+
+    /**
+     * @param virtualThreads Use virtual threads for the workers.
+     * @return executor to start the workers with
+     */
+    public static ExecutorService newWorkerExecutor(boolean virtualThreads) {
+        if (virtualThreads) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("cdx-worker-", 0).factory()); //Named so the log shows the worker
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+}
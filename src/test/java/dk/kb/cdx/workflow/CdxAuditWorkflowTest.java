@@ -0,0 +1,195 @@
+package dk.kb.cdx.workflow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Run the audit workflow against a small stand-in for the OutbackCDX query API.
+ * The stand-in answers url queries from the CDX lines it has been given.
+ */
+public class CdxAuditWorkflowTest {
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private int delayMillis=0;
+    private AtomicInteger queries = new AtomicInteger();
+    private AtomicInteger inFlight = new AtomicInteger();
+    private AtomicInteger maxInFlight = new AtomicInteger();
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+        }
+        CdxAuditWorkflow.setMaxServerRequests(0);
+        CdxAuditWorkflow.setReadOptions(0, 0, false);
+        CdxAuditWorkflow.setFileSample(1);
+    }
+
+    @Test
+    void testAuditAllRecordsIndexed() throws Exception {
+        String warcFile = CdxIndexerWorkflowTest.getTestWarcFile().toString();
+        String cdxServer = startServer(getCdxLines(warcFile));
+
+        List<String> missing = runAudit(cdxServer, warcFile);
+        assertEquals(0, missing.size(), "WARC file must not be reported missing when all records are indexed");
+    }
+
+    @Test
+    void testAuditNothingIndexed() throws Exception {
+        String warcFile = CdxIndexerWorkflowTest.getTestWarcFile().toString();
+        String cdxServer = startServer(new ArrayList<String>());
+
+        List<String> missing = runAudit(cdxServer, warcFile);
+        assertEquals(List.of(warcFile), missing);
+    }
+
+    @Test
+    void testAuditPartialIndexed() throws Exception {
+        String warcFile = CdxIndexerWorkflowTest.getTestWarcFile().toString();
+        List<String> lines = getCdxLines(warcFile);
+        String cdxServer = startServer(lines.subList(0, lines.size()/2));
+
+        List<String> missing = runAudit(cdxServer, warcFile);
+        assertEquals(List.of(warcFile), missing);
+    }
+
+    @Test
+    void testAuditFullScanLimitsQueriesInFlight() throws Exception {
+        String warcFile = CdxIndexerWorkflowTest.getTestWarcFile().toString();
+        delayMillis=5; // Slow server, so the queries overlap
+        String cdxServer = startServer(getCdxLines(warcFile));
+
+        CdxAuditWorkflow.setMaxServerRequests(3);
+        List<String> missing = runAudit(cdxServer, warcFile, "0"); // 0 will query all records
+        assertEquals(0, missing.size(), "WARC file must not be reported missing when all records are indexed");
+
+        CdxOutputBuffer cdx = new CdxOutputBuffer(true);
+        CdxIndexWorker.writeCdx(cdx, warcFile, CdxIndexerWorkflow.createCdxBuilder(), true);
+        int records = CdxAuditWorker.sampleRecords(cdx, 0).size();
+        assertTrue(records > 20, "Full scan must query more records than the default sample");
+        assertEquals(records, queries.get(), "Full scan must query every record");
+        assertTrue(maxInFlight.get() <= 3, "Queries in flight exceeded the limit:"+maxInFlight.get());
+    }
+
+    @Test
+    void testAuditEveryNthFileWithReadLimits() throws Exception {
+        Path warcFile = CdxIndexerWorkflowTest.getTestWarcFile();
+        Path folder = Files.createTempDirectory("audit_sample");
+        List<String> copies = new ArrayList<String>();
+        for (int i=0;i<5;i++) {
+            Path copy = folder.resolve(i+"-"+warcFile.getFileName());
+            Files.copy(warcFile, copy);
+            copies.add(copy.toString());
+        }
+        String cdxServer = startServer(new ArrayList<String>()); //Nothing indexed, so every audited WARC-file is missing
+
+        // Only the 1st, 3rd and 5th are read. One read at a time from the mount with a shared read buffer
+        CdxAuditWorkflow.setFileSample(2);
+        CdxAuditWorkflow.setReadOptions(1, 1, false);
+        Path inputFile = folder.resolve("input.txt");
+        Path outputFile = folder.resolve("missing.txt");
+        Files.write(inputFile, copies);
+        CdxAuditWorkflow.main(cdxServer, inputFile.toString(), outputFile.toString(), "true", "2", "metadata", "5");
+
+        List<String> missing = new ArrayList<String>(Files.readAllLines(outputFile));
+        Collections.sort(missing);
+        assertEquals(List.of(copies.get(0), copies.get(2), copies.get(4)), missing);
+        assertEquals(15, queries.get(), "5 queries for each of the 3 audited WARC-files");
+
+        assertEquals(List.of("a", "c"), CdxAuditWorkflow.sampleWarcFiles(List.of("a", "metadata", "b", "c"), "metadata", 2));
+    }
+
+    private List<String> runAudit(String cdxServer, String warcFile) throws Exception {
+        return runAudit(cdxServer, warcFile, "20");
+    }
+
+    private List<String> runAudit(String cdxServer, String warcFile, String samplesPerFile) throws Exception {
+        Path inputFile = Files.createTempFile("audit_input", ".txt");
+        Path outputFile = Files.createTempFile("audit_missing", ".txt");
+        Files.writeString(inputFile, warcFile+"\n");
+
+        CdxAuditWorkflow.main(cdxServer, inputFile.toString(), outputFile.toString(), "true", "2", "metadata", samplesPerFile);
+        List<String> missing = Files.readAllLines(outputFile);
+
+        Files.deleteIfExists(inputFile);
+        Files.deleteIfExists(outputFile);
+        return missing;
+    }
+
+    private static List<String> getCdxLines(String warcFile) throws IOException {
+        StringWriter writer = new StringWriter();
+        CdxIndexWorker.writeCdx(writer, warcFile, CdxIndexerWorkflow.createCdxBuilder(), true);
+        List<String> lines = new ArrayList<String>();
+        for (String line : writer.toString().split("\n")) {
+            if (!line.startsWith(" CDX")) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Start the stand-in server. Returns the index url as configured for the workflow.
+     */
+    private String startServer(List<String> indexedLines) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/index", exchange -> {
+            queries.incrementAndGet();
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(delayMillis);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Map<String, String> params = new HashMap<String, String>();
+            for (String param : exchange.getRequestURI().getRawQuery().split("&")) {
+                String[] keyValue = param.split("=", 2);
+                params.put(keyValue[0], URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8));
+            }
+
+            StringBuilder body = new StringBuilder();
+            for (String line : indexedLines) {
+                String[] fields = line.split(" ");
+                if (fields[2].equals(params.get("url")) && fields[1].equals(params.get("from"))) {
+                    body.append(line).append("\n");
+                }
+            }
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+            inFlight.decrementAndGet(); // Before the response is sent, since the client can send the next query when it has the response
+            exchange.sendResponseHeaders(200, bytes.length == 0 ? -1 : bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(10); // More threads than the limit, so the limit is tested and not the server
+        server.setExecutor(serverExecutor);
+        server.start();
+        return "http://localhost:" + server.getAddress().getPort() + "/index?badLines=skip";
+    }
+
+}
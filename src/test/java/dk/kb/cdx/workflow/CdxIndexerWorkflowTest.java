@@ -6,6 +6,8 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -14,12 +16,17 @@ import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sun.net.httpserver.HttpServer;
+
 import dk.kb.util.Resolver;
 
 /**
@@ -52,6 +59,9 @@ public class CdxIndexerWorkflowTest {
         //Clean up before test
         Files.deleteIfExists(inputFilePath);
         Files.deleteIfExists(completedFilePath);
+        Files.deleteIfExists(Path.of(completedFilePath + CdxIndexerWorkflow.DRYRUN_SUFFIX));
+        Files.deleteIfExists(Path.of(completedFilePath + CdxIndexerWorkflow.FAILED_SUFFIX + CdxIndexerWorkflow.DRYRUN_SUFFIX));
+        Files.deleteIfExists(Path.of(completedFilePath + CdxIndexerWorkflow.QUARANTINE_SUFFIX + CdxIndexerWorkflow.DRYRUN_SUFFIX));
         
         
         log.info("Creating input file with warc files to process:" + inputFilePath);
@@ -65,6 +75,11 @@ public class CdxIndexerWorkflowTest {
         log.info("Created inputfile completed. #warcfiles=:" + fileCount);
     }
 
+    @BeforeEach
+    void setUp() {
+        CdxIndexerWorkflow.setRetryOptions(2, 0); //No delay for retries of WARC-files that do not exist
+    }
+
     @Test
     void testWorkflowWithTwoWarcFiles() {
         try {       
@@ -85,8 +100,11 @@ public class CdxIndexerWorkflowTest {
             
             CdxIndexerWorkflow.main(cdxServer, warcFileListPath.toString(), completedFile, absolutePaths, numberOfThreads,ignorePattern,dryRun);
             
-            // Check workflow wrote the two warc-files as completed.
-            validatecompletedFile(WARCS); //both must be here
+            // The .arc fixture is not in the test resources. Only the warc.gz is completed, the .arc is failed
+            validatecompletedFile(List.of(WARCS.get(1)));
+            String missingArc = Paths.get(getTestResourceFolder() + "/warcs/" + WARCS.get(0)).toString();
+            List<String> failed = Files.readAllLines(Paths.get(getTestResourceFolder() + "/" + WARC_OUTPUT_FILE + CdxIndexerWorkflow.FAILED_SUFFIX + CdxIndexerWorkflow.DRYRUN_SUFFIX));
+            assertTrue(failed.stream().anyMatch(line -> line.startsWith(missingArc + "\t")), "The missing .arc must be in the failed file");
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -114,9 +132,26 @@ public class CdxIndexerWorkflowTest {
             
             CdxIndexerWorkflow.main(cdxServer, warcFileListPath.toString(), completedFile, absolutePaths, numberOfThreads,ignorePattern,dryRun);
             
-            // Check workflow wrote the two warc-files as completed.
-            //TODO maybe write another file with FAILED instead of completed. This can happen with critical parse error or file not found
-            validatecompletedFile(WARCS_WITH_NONEXISTING); //this non existing file should also be marked as completed 
+            // Only the warc.gz is completed. The missing .arc and the non existing file are not completed
+            validatecompletedFile(List.of(WARCS.get(1)));
+
+            // File not found is a transient failure. First attempt and 2 retries
+            String notFound = Paths.get(getTestResourceFolder() + "/warcs/" + WARCS_WITH_NONEXISTING.get(2)).toString();
+            List<String> failed = new ArrayList<>();
+            for (String line : Files.readAllLines(Paths.get(getTestResourceFolder() + "/" + WARC_OUTPUT_FILE + CdxIndexerWorkflow.FAILED_SUFFIX + CdxIndexerWorkflow.DRYRUN_SUFFIX))) {
+                if (line.startsWith(notFound + "\t")) {
+                    failed.add(line);
+                }
+            }
+            assertEquals(3, failed.size(), "Expected 3 attempts in the failed file");
+            for (int i=0;i<failed.size();i++) {
+                String[] fields = failed.get(i).split("\t");
+                assertEquals(notFound, fields[0]);
+                assertEquals("TRANSIENT", fields[1]);
+                assertEquals(""+(i+1), fields[2]);
+            }
+            List<String> quarantined = Files.readAllLines(Paths.get(getTestResourceFolder() + "/" + WARC_OUTPUT_FILE + CdxIndexerWorkflow.QUARANTINE_SUFFIX + CdxIndexerWorkflow.DRYRUN_SUFFIX));
+            assertEquals(0, quarantined.size(), "Transient failure must not be quarantined");
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -124,8 +159,286 @@ public class CdxIndexerWorkflowTest {
         }
     }
 
+    @Test
+    void testWorkflowWithBlankIgnorePattern() {
+        try {
+            createWarcInputFile(List.of(WARCS.get(1)));
+            Path warcFileListPath = getWarcInputFileListPath();
+            String parentFolder = getFile(WARC_INPUT_FILE).getParent().toString();
+            String completedFile = parentFolder + "/warc_file.list.COMPLETED.txt";
+
+            // No ignore pattern. All WARC-files must be indexed
+            CdxIndexerWorkflow.main("http://localhost:8081/index?badLines=skip", warcFileListPath.toString(), completedFile, "true", "1", "", "true");
+
+            List<String> completed = Files.readAllLines(Paths.get(getTestResourceFolder() + "/" + WARC_OUTPUT_FILE +CdxIndexerWorkflow.DRYRUN_SUFFIX));
+            assertEquals(List.of(Paths.get(getTestResourceFolder() + "/warcs/" + WARCS.get(1)).toString()), completed);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("workflow run failed:"+e.getMessage());
+        }
+    }
+
+    @Test
+    void testWorkflowWithVirtualThreadsResourceLimitsAndPrefetch() {
+        try {
+            createWarcInputFile(WARCS);
+            Path warcFileListPath = getWarcInputFileListPath();
+            String parentFolder = getFile(WARC_INPUT_FILE).getParent().toString();
+            String completedFile = parentFolder + "/warc_file.list.COMPLETED.txt";
+
+            // Virtual threads falls back to platform threads before Java 21. Many workers, but only one read at a time.
+            CdxIndexerWorkflow.setVirtualThreads(true);
+            CdxIndexerWorkflow.setResourceLimits(1, 1);
+            CdxIndexerWorkflow.setReadOptions(1, 2, false);
+            CdxIndexerWorkflow.main("http://localhost:8081/index?badLines=skip", warcFileListPath.toString(), completedFile, "true", "16", "metadata", "true");
+
+            validatecompletedFile(List.of(WARCS.get(1))); // The .arc fixture is missing
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("workflow run failed:"+e.getMessage());
+        }
+        finally {
+            CdxIndexerWorkflow.setVirtualThreads(false);
+            CdxIndexerWorkflow.setResourceLimits(0, 0);
+            CdxIndexerWorkflow.setReadOptions(0, 0, false);
+        }
+    }
+
+    @Test
+    void testWorkflowWithManyWorkersAndReadBuffer() {
+        try {
+            createWarcInputFile(List.of(WARCS.get(1)));
+            Path warcFileListPath = getWarcInputFileListPath();
+            String parentFolder = getFile(WARC_INPUT_FILE).getParent().toString();
+            String completedFile = parentFolder + "/warc_file.list.COMPLETED.txt";
+
+            // 300 workers with 64MB each would be 19GB of direct memory. The buffers are only taken for reads in flight
+            CdxIndexerWorkflow.setResourceLimits(0, 2);
+            CdxIndexerWorkflow.setReadOptions(64, 1, false);
+            CdxIndexerWorkflow.main("http://localhost:8081/index?badLines=skip", warcFileListPath.toString(), completedFile, "true", "300", "metadata", "true");
+
+            validatecompletedFile(List.of(WARCS.get(1)));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("workflow run failed:"+e.getMessage());
+        }
+        finally {
+            CdxIndexerWorkflow.setResourceLimits(0, 0);
+            CdxIndexerWorkflow.setReadOptions(0, 0, false);
+        }
+    }
+
+    @Test
+    void testWorkflowSkipsDuplicateWarcFile() {
+        Path copyFolder = null;
+        try {
+            // Same WARC-file stored under a different path
+            copyFolder = Files.createTempDirectory("warc_copy");
+            Path source = Paths.get(getTestResourceFolder() + "/warcs/" + WARCS.get(1));
+            Path copy = copyFolder.resolve(WARCS.get(1));
+            Files.copy(source, copy);
+
+            createWarcInputFile(List.of(WARCS.get(1)));
+            Path warcFileListPath = getWarcInputFileListPath();
+            Files.writeString(warcFileListPath, copy + "\n", StandardOpenOption.APPEND);
+
+            String parentFolder = getFile(WARC_INPUT_FILE).getParent().toString();
+            String completedFile = parentFolder + "/warc_file.list.COMPLETED.txt";
+            Path fingerprintFile = copyFolder.resolve("fingerprints.txt");
+            
+            CdxIndexerWorkflow.setFingerprintFile(fingerprintFile.toString());
+            CdxIndexerWorkflow.main("http://localhost:8081/index?badLines=skip", warcFileListPath.toString(), completedFile, "true", "1", "metadata", "true");
+
+            // Both are marked completed, but only one fingerprint is stored since the copy was skipped
+            List<String> completed = Files.readAllLines(Paths.get(getTestResourceFolder() + "/" + WARC_OUTPUT_FILE +CdxIndexerWorkflow.DRYRUN_SUFFIX));
+            assertEquals(2, completed.size());
+            assertTrue(completed.contains(copy.toString()), "Completed list does not include the copy");
+            
+            List<String> fingerprints = Files.readAllLines(Paths.get(fingerprintFile + CdxIndexerWorkflow.DRYRUN_SUFFIX));
+            assertEquals(1, fingerprints.size(), "Only one fingerprint expected");
+            assertEquals(WarcFingerprint.getFingerprint(source), fingerprints.get(0).split("\t")[0]);
+            assertEquals(WarcFingerprint.getFingerprint(source), WarcFingerprint.getFingerprint(copy));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("workflow run failed:"+e.getMessage());
+        }
+        finally {
+            CdxIndexerWorkflow.setFingerprintFile(null);
+        }
+    }
     
-    
+    @Test
+    void testWorkflowIndexesCopyWhenDuplicateFails() {
+        Path copyFolder = null;
+        try {
+            // Corrupt replica with the same fingerprint: Same size, first and last 64KB, but the middle is overwritten
+            copyFolder = Files.createTempDirectory("warc_copy");
+            Path source = Paths.get(getTestResourceFolder() + "/warcs/" + WARCS.get(1));
+            Path corrupt = copyFolder.resolve(WARCS.get(1));
+            byte[] bytes = Files.readAllBytes(source);
+            Arrays.fill(bytes, bytes.length/2, bytes.length/2 + WarcFingerprint.BLOCK_SIZE, (byte) 0);
+            Files.write(corrupt, bytes);
+            assertEquals(WarcFingerprint.getFingerprint(source), WarcFingerprint.getFingerprint(corrupt));
+
+            // The corrupt replica is first, so the workers start on both at the same time
+            createWarcInputFile(List.of());
+            Path warcFileListPath = getWarcInputFileListPath();
+            Files.writeString(warcFileListPath, corrupt + "\n" + source + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+            String parentFolder = getFile(WARC_INPUT_FILE).getParent().toString();
+            String completedFile = parentFolder + "/warc_file.list.COMPLETED.txt";
+            Path fingerprintFile = copyFolder.resolve("fingerprints.txt");
+
+            CdxIndexerWorkflow.setFingerprintFile(fingerprintFile.toString());
+            CdxIndexerWorkflow.main("http://localhost:8081/index?badLines=skip", warcFileListPath.toString(), completedFile, "true", "2", "metadata", "true");
+
+            // The good copy is indexed, not skipped because of the corrupt replica
+            List<String> completed = Files.readAllLines(Paths.get(getTestResourceFolder() + "/" + WARC_OUTPUT_FILE +CdxIndexerWorkflow.DRYRUN_SUFFIX));
+            assertEquals(List.of(source.toString()), completed);
+
+            List<String> fingerprints = Files.readAllLines(Paths.get(fingerprintFile + CdxIndexerWorkflow.DRYRUN_SUFFIX));
+            assertEquals(List.of(WarcFingerprint.getFingerprint(source) + "\t" + source), fingerprints);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("workflow run failed:"+e.getMessage());
+        }
+        finally {
+            CdxIndexerWorkflow.setFingerprintFile(null);
+        }
+    }
+
+    @Test
+    void testWorkflowQuarantinesTruncatedWarcFileAfterRetries() throws Exception {
+        // A WARC-file cut in the middle of the gzip stream, as when it is read while being copied
+        Path folder = Files.createTempDirectory("truncated");
+        Path source = Paths.get(getTestResourceFolder() + "/warcs/" + WARCS.get(1));
+        Path truncated = folder.resolve(WARCS.get(1));
+        byte[] bytes = Files.readAllBytes(source);
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length/2));
+        Path inputFile = folder.resolve("input.txt");
+        Files.writeString(inputFile, truncated + "\n");
+
+        CdxIndexerWorkflow.main("http://localhost:8081/index?badLines=skip", inputFile.toString(), folder.resolve("completed.txt").toString(), "true", "1", "metadata", "true");
+
+        String suffix = CdxIndexerWorkflow.DRYRUN_SUFFIX;
+        List<String> failed = Files.readAllLines(folder.resolve("completed.txt" + CdxIndexerWorkflow.FAILED_SUFFIX + suffix));
+        assertEquals(3, failed.size(), "Expected the first attempt and 2 retries");
+        for (String line : failed) {
+            assertEquals("TRANSIENT", line.split("\t")[1]);
+        }
+        assertEquals(List.of(truncated.toString()), Files.readAllLines(folder.resolve("completed.txt" + CdxIndexerWorkflow.QUARANTINE_SUFFIX + suffix)), "Still truncated after the last retry");
+    }
+
+    @Test
+    void testWorkflowLimitsServerRequests() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        ExecutorService serverExecutor = Executors.newFixedThreadPool(8); // The server could answer all workers at the same time
+        server.setExecutor(serverExecutor);
+        server.createContext("/index", exchange -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                exchange.getRequestBody().readAllBytes();
+                Thread.sleep(20);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                inFlight.decrementAndGet(); // Before the response, the worker can post again when it has the response
+            }
+            byte[] body = "Added 1 records\n".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            // 4 workers on 4 copies, but only 1 post to the server at a time
+            Path folder = Files.createTempDirectory("server_limit");
+            Path source = getTestWarcFile();
+            StringBuilder input = new StringBuilder();
+            for (int i=0;i<4;i++) {
+                Path copy = folder.resolve(i + "-" + WARCS.get(1));
+                Files.copy(source, copy);
+                input.append(copy).append("\n");
+            }
+            Path inputFile = folder.resolve("input.txt");
+            Files.writeString(inputFile, input);
+
+            CdxIndexerWorkflow.setResourceLimits(1, 0);
+            String cdxServer = "http://localhost:" + server.getAddress().getPort() + "/index?badLines=skip";
+            CdxIndexerWorkflow.main(cdxServer, inputFile.toString(), folder.resolve("completed.txt").toString(), "true", "4", "metadata", "false");
+
+            assertEquals(4, Files.readAllLines(folder.resolve("completed.txt")).size());
+            assertEquals(1, maxInFlight.get(), "Posts in flight exceeded the limit");
+        }
+        finally {
+            CdxIndexerWorkflow.setResourceLimits(0, 0);
+            server.stop(0);
+            serverExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testWorkflowQuarantinesDataRejectedByServer() throws Exception {
+        Path folder = runWithServerStatus(400);
+        assertEquals(List.of(), Files.readAllLines(folder.resolve("completed.txt")));
+        assertEquals(2, Files.readAllLines(folder.resolve("completed.txt" + CdxIndexerWorkflow.QUARANTINE_SUFFIX)).size(), "Both WARC-files must be quarantined");
+    }
+
+    @Test
+    void testWorkflowStopsOnServerError() throws Exception {
+        for (int status : new int[] {403, 404, 503}) {
+            Path folder = runWithServerStatus(status);
+            assertEquals(List.of(), Files.readAllLines(folder.resolve("completed.txt")));
+            assertEquals(List.of(), Files.readAllLines(folder.resolve("completed.txt" + CdxIndexerWorkflow.QUARANTINE_SUFFIX)), "Nothing must be quarantined for status:"+status);
+            assertTrue(Files.notExists(folder.resolve("completed.txt" + CdxIndexerWorkflow.FAILED_SUFFIX)), "The worker must stop, not fail the WARC-file for status:"+status);
+        }
+    }
+
+    /**
+     * Index the WARC-file and a copy with 1 thread against a stand-in CDX server that answers all posts with the status.
+     * @return The folder with the completed, FAILED and QUARANTINE files
+     */
+    private static Path runWithServerStatus(int status) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/index", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            byte[] body = ("Status "+status+"\n").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            Path folder = Files.createTempDirectory("server_status");
+            Path source = Paths.get(getTestResourceFolder() + "/warcs/" + WARCS.get(1));
+            Path copy = folder.resolve(WARCS.get(1));
+            Files.copy(source, copy);
+            Path inputFile = folder.resolve("input.txt");
+            Files.writeString(inputFile, source + "\n" + copy + "\n");
+
+            String cdxServer = "http://localhost:" + server.getAddress().getPort() + "/index?badLines=skip";
+            CdxIndexerWorkflow.main(cdxServer, inputFile.toString(), folder.resolve("completed.txt").toString(), "true", "1", "metadata", "false");
+            return folder;
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * The completed file must have exactly the expected WARC-files. Failed WARC-files are written to the FAILED file instead.
+     */
     private void validatecompletedFile( List<String> expectedFiles) throws IOException {
         List<String> allLines = Files.readAllLines(Paths.get(getTestResourceFolder() + "/" + WARC_OUTPUT_FILE +CdxIndexerWorkflow.DRYRUN_SUFFIX));
         assertEquals(expectedFiles.size(), allLines.size(), "Completed warc files does not have expected number of lines");
@@ -151,6 +464,13 @@ public class CdxIndexerWorkflowTest {
     }
 
     
+    /**
+     * @return The warc.gz test file. Used by the other tests that need a WARC-file
+     */
+    static Path getTestWarcFile() {
+        return Resolver.getPathFromClasspath("warcs/" + WARCS.get(1));
+    }
+
     private static String getTestResourceFolder() {
         return Resolver.getPathFromClasspath(DUMMY_FILE).toFile().getParent();
 
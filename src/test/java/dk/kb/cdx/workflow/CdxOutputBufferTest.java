@@ -0,0 +1,74 @@
+package dk.kb.cdx.workflow;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.netpreserve.jwarc.cdx.CdxFormat;
+
+/**
+ * Validate the CDX output written into the reusable UTF-8 buffer is byte for byte the same as the output from the jwarc CdxWriter into a String.
+ */
+public class CdxOutputBufferTest {
+
+    @Test
+    void testBufferMatchesCdxWriterOutput() throws Exception {
+        String warcFile = CdxIndexerWorkflowTest.getTestWarcFile().toString();
+        CdxFormat.Builder cdxFormatBuilder = CdxIndexerWorkflow.createCdxBuilder();
+
+        StringWriter expected = new StringWriter();
+        CdxIndexWorker.writeCdx(expected, warcFile, cdxFormatBuilder, true);
+        byte[] expectedBytes = expected.toString().getBytes(StandardCharsets.UTF_8);
+
+        CdxOutputBuffer buffer = new CdxOutputBuffer(true);
+        CdxIndexWorker.writeCdx(buffer, warcFile, cdxFormatBuilder, true);
+        assertArrayEquals(expectedBytes, buffer.toByteArray(), "Buffer output is not identical to CdxWriter output");
+
+        // Reuse the buffer for a second file. Must give the same result
+        buffer.reset();
+        CdxIndexWorker.writeCdx(buffer, warcFile, cdxFormatBuilder, true);
+        assertArrayEquals(expectedBytes, buffer.toByteArray(), "Buffer output is not identical after reset");
+
+        // Dry run buffer. Only counting
+        CdxOutputBuffer countingBuffer = new CdxOutputBuffer(false);
+        CdxIndexWorker.writeCdx(countingBuffer, warcFile, cdxFormatBuilder, true);
+        assertEquals(0, countingBuffer.size());
+        assertEquals(expectedBytes.length, countingBuffer.getByteCount());
+        int expectedLines = expected.toString().split("\n").length;
+        assertEquals(expectedLines, countingBuffer.getLineCount());
+        assertTrue(countingBuffer.getLineCount() > 1, "No CDX records for the test WARC file");
+    }
+
+    @Test
+    void testUtf8Encoding() throws Exception {
+        // ASCII, 2-byte, 3-byte, surrogate pair and unpaired surrogates
+        String text = "a\u00e6\u00f8\u00e5\u20ac\ud83d\ude00\ud83d-\ude00\n";
+        CdxOutputBuffer buffer = new CdxOutputBuffer(true);
+        buffer.write(text);
+        buffer.close();
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), buffer.toByteArray());
+        assertEquals(1, buffer.getLineCount());
+
+        // High surrogate as the last char
+        buffer.reset();
+        buffer.write("x\ud83d");
+        buffer.close();
+        assertArrayEquals("x\ud83d".getBytes(StandardCharsets.UTF_8), buffer.toByteArray());
+    }
+
+    @Test
+    void testNewCapacity() throws Exception {
+        assertEquals(1024, CdxOutputBuffer.newCapacity(0, 1024));
+        assertEquals(2048, CdxOutputBuffer.newCapacity(1024, 1024));
+        // Doubling 1GB would overflow int
+        assertEquals(CdxOutputBuffer.MAX_CAPACITY, CdxOutputBuffer.newCapacity(1 << 30, 1024));
+        assertEquals(CdxOutputBuffer.MAX_CAPACITY, CdxOutputBuffer.newCapacity(CdxOutputBuffer.MAX_CAPACITY-1, 1024));
+        assertThrows(CdxOutputTooLargeException.class, () -> CdxOutputBuffer.newCapacity(CdxOutputBuffer.MAX_CAPACITY, 1024));
+        assertEquals(WarcFailure.Type.PERMANENT, WarcFailure.classify(new CdxOutputTooLargeException(CdxOutputBuffer.MAX_CAPACITY)), "Will be too large again");
+    }
+}
@@ -0,0 +1,269 @@
+package dk.kb.cdx.workflow;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Post CDX data compressed to a stand-in for the CDX server that decompresses the request body.
+ * The stand-in can also reject the Content-Encoding or ignore it, then the workflow must send the data uncompressed.
+ */
+public class PostCompressionTest {
+
+    private enum ServerMode {DECOMPRESS, REJECT, IGNORE, BAD_DATA, NO_DECODE_STRICT}
+
+    private HttpServer server;
+    private List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+    private Path quarantineFile;
+
+    private static class Request {
+        String contentEncoding;
+        byte[] raw;
+        byte[] data;
+    }
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) {
+            server.stop(0);
+        }
+        CdxIndexerWorkflow.setPostCompression(null);
+    }
+
+    @Test
+    void testGzip() throws Exception {
+        runWorkflow(ServerMode.DECOMPRESS, "gzip");
+
+        assertEquals(1, requests.size());
+        Request request = requests.get(0);
+        assertEquals("gzip", request.contentEncoding);
+        assertArrayEquals(getExpectedCdx(), request.data, "Decompressed CDX data is not the same as the CDX output");
+        assertTrue(request.raw.length*4 < request.data.length, "CDX data was not compressed");
+    }
+
+    @Test
+    void testDeflate() throws Exception {
+        runWorkflow(ServerMode.DECOMPRESS, "deflate");
+
+        assertEquals(1, requests.size());
+        Request request = requests.get(0);
+        assertEquals("deflate", request.contentEncoding);
+        assertArrayEquals(getExpectedCdx(), request.data, "Decompressed CDX data is not the same as the CDX output");
+        assertTrue(request.raw.length*4 < request.data.length, "CDX data was not compressed");
+    }
+
+    @Test
+    void testFallbackWhenEncodingRejected() throws Exception {
+        List<String> completed = runWorkflow(ServerMode.REJECT, "gzip");
+
+        assertEquals(2, requests.size(), "Expected a compressed post and an uncompressed post");
+        assertEquals("gzip", requests.get(0).contentEncoding);
+        assertEquals(null, requests.get(1).contentEncoding);
+        assertArrayEquals(getExpectedCdx(), requests.get(1).data);
+        assertEquals(1, completed.size());
+    }
+
+    @Test
+    void testFallbackWhenEncodingIgnored() throws Exception {
+        List<String> completed = runWorkflow(ServerMode.IGNORE, "gzip");
+
+        assertEquals(2, requests.size(), "Expected a compressed post and an uncompressed post");
+        assertEquals(null, requests.get(1).contentEncoding);
+        assertArrayEquals(getExpectedCdx(), requests.get(1).data);
+        assertEquals(1, completed.size());
+    }
+
+    @Test
+    void testBadDataIsNotEncodingRejection() throws Exception {
+        List<String> completed = runWorkflow(ServerMode.BAD_DATA, "gzip");
+
+        // The uncompressed post is also rejected, so it is bad CDX data and the WARC-file is quarantined
+        assertEquals(2, requests.size(), "Expected a compressed post and an uncompressed post");
+        assertEquals("gzip", requests.get(0).contentEncoding);
+        assertEquals(null, requests.get(1).contentEncoding);
+        assertEquals(0, completed.size());
+        assertEquals(1, Files.readAllLines(quarantineFile).size());
+    }
+
+    @Test
+    void testFallbackWhenCompressedDataRejectedAsBadData() throws Exception {
+        List<String> completed = runWorkflow(ServerMode.NO_DECODE_STRICT, "gzip");
+
+        // Server without badLines=skip that does not decode the gzip bytes answers 400. The uncompressed post is accepted
+        assertEquals(2, requests.size(), "Expected a compressed post and an uncompressed post");
+        assertEquals("gzip", requests.get(0).contentEncoding);
+        assertEquals(null, requests.get(1).contentEncoding);
+        assertArrayEquals(getExpectedCdx(), requests.get(1).data);
+        assertEquals(1, completed.size());
+        assertEquals(0, Files.readAllLines(quarantineFile).size(), "Must not be quarantined");
+    }
+
+    @Test
+    void testBodyCanBeSentAgain() throws Exception {
+        byte[] data = getExpectedCdx();
+        AtomicReference<PostCompression.CountingInputStream> sentBody = new AtomicReference<PostCompression.CountingInputStream>();
+        BodyPublisher publisher = PostCompression.publisher(data, data.length, PostCompression.Encoding.GZIP, sentBody);
+
+        // The HTTP client subscribes again when it resends the request. The full body must be sent each time
+        byte[] first = readBody(publisher);
+        byte[] second = readBody(publisher);
+        assertArrayEquals(first, second, "Second subscription did not get the full body");
+        try (InputStream decompressed = new GZIPInputStream(new ByteArrayInputStream(second))) {
+            assertArrayEquals(data, decompressed.readAllBytes());
+        }
+        assertEquals(second.length, sentBody.get().getCount(), "Wire bytes must be counted for the latest subscription");
+    }
+
+    @Test
+    void testNoCompression() throws Exception {
+        runWorkflow(ServerMode.DECOMPRESS, "none");
+
+        assertEquals(1, requests.size());
+        assertEquals(null, requests.get(0).contentEncoding);
+        assertArrayEquals(getExpectedCdx(), requests.get(0).data);
+    }
+
+    /**
+     * @return The completed WARC-files
+     */
+    private List<String> runWorkflow(ServerMode mode, String compression) throws Exception {
+        String cdxServer = startServer(mode);
+        String warcFile = CdxIndexerWorkflowTest.getTestWarcFile().toString();
+
+        Path folder = Files.createTempDirectory("post_compression");
+        Path inputFile = folder.resolve("input.txt");
+        Path completedFile = folder.resolve("completed.txt");
+        Files.writeString(inputFile, warcFile+"\n");
+        quarantineFile = folder.resolve("completed.txt" + CdxIndexerWorkflow.QUARANTINE_SUFFIX);
+
+        CdxIndexerWorkflow.setPostCompression(compression);
+        CdxIndexerWorkflow.main(cdxServer, inputFile.toString(), completedFile.toString(), "true", "1", "metadata", "false");
+        return Files.readAllLines(completedFile);
+    }
+
+    private static byte[] getExpectedCdx() throws IOException {
+        StringWriter writer = new StringWriter();
+        CdxIndexWorker.writeCdx(writer, CdxIndexerWorkflowTest.getTestWarcFile().toString(), CdxIndexerWorkflow.createCdxBuilder(), true);
+        return writer.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Subscribe to the body like the HTTP client does and read all of it.
+     */
+    private static byte[] readBody(BodyPublisher publisher) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompletableFuture<byte[]> done = new CompletableFuture<byte[]>();
+        publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                byte[] bytes = new byte[item.remaining()];
+                item.get(bytes);
+                out.write(bytes, 0, bytes.length);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(out.toByteArray());
+            }
+        });
+        return done.get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Start the stand-in server. Answers like OutbackCDX: 'Added N records'
+     */
+    private String startServer(ServerMode mode) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/index", exchange -> {
+            Request request = new Request();
+            request.contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            try (InputStream body = exchange.getRequestBody()) {
+                request.raw = body.readAllBytes();
+            }
+
+            int status = 200;
+            if (mode == ServerMode.BAD_DATA) {
+                status = 400;
+                request.data = new byte[0];
+            }
+            else if (request.contentEncoding != null && mode == ServerMode.NO_DECODE_STRICT) {
+                status = 400; //The compressed bytes are not valid CDX lines
+                request.data = request.raw;
+            }
+            else if (request.contentEncoding != null && mode == ServerMode.REJECT) {
+                status = 415;
+                request.data = new byte[0];
+            }
+            else if (request.contentEncoding != null && mode == ServerMode.DECOMPRESS) {
+                InputStream raw = new ByteArrayInputStream(request.raw);
+                try (InputStream decompressed = "gzip".equals(request.contentEncoding) ? new GZIPInputStream(raw) : new InflaterInputStream(raw)) {
+                    request.data = decompressed.readAllBytes();
+                }
+            }
+            else {
+                request.data = request.raw; // Uncompressed, or the server ignores the encoding
+            }
+            requests.add(request);
+
+            String response = status == 200 ? "Added "+countRecords(request) +" records\n" : status == 400 ? "Bad CDX line\n" : "Unsupported Content-Encoding\n";
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+        return "http://localhost:" + server.getAddress().getPort() + "/index?badLines=skip";
+    }
+
+    /**
+     * Lines in the CDX format. Compressed data that is not decompressed has no valid lines, like OutbackCDX with badLines=skip.
+     */
+    private static int countRecords(Request request) {
+        int records = 0;
+        for (String line : new String(request.data, StandardCharsets.UTF_8).split("\n")) {
+            if (!line.startsWith(" CDX") && line.split(" ").length == 11) {
+                records++;
+            }
+        }
+        return records;
+    }
+
+}
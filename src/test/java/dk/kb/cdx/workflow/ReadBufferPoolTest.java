@@ -0,0 +1,61 @@
+package dk.kb.cdx.workflow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class ReadBufferPoolTest {
+
+    @Test
+    void testBuffersAllocatedWhenNeededAndReused() throws Exception {
+        ReadBufferPool pool = new ReadBufferPool(1000, 2);
+        assertEquals(0, pool.getAllocated(), "Nothing must be allocated before the first read");
+
+        ByteBuffer first = pool.take();
+        assertEquals(4096, first.capacity());
+        assertTrue(first.isDirect());
+        pool.release(first);
+        assertSame(first, pool.take(), "A released buffer must be reused");
+
+        ByteBuffer second = pool.take();
+        assertEquals(2, pool.getAllocated());
+
+        // All buffers are in use. The next reader waits
+        CompletableFuture<ByteBuffer> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.take();
+            }
+            catch(InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(waiting.isDone(), "Max 2 buffers");
+        pool.release(second);
+        assertSame(second, waiting.get(10, TimeUnit.SECONDS));
+        assertEquals(2, pool.getAllocated());
+    }
+
+    @Test
+    void testBuffersLimitedByDirectMemory() {
+        int bufferSize = 64*1024*1024;
+        ReadBufferPool pool = ReadBufferPool.forReads(bufferSize, Integer.MAX_VALUE);
+        assertTrue((long) pool.getMaxBuffers()*bufferSize <= Math.max(bufferSize, ReadBufferPool.getMaxDirectMemory()/2));
+        assertEquals(0, pool.getAllocated());
+    }
+
+    @Test
+    void testParseSize() {
+        assertEquals(512L*1024*1024, ReadBufferPool.parseSize("512m"));
+        assertEquals(2L*1024*1024*1024, ReadBufferPool.parseSize("2G"));
+        assertEquals(1000, ReadBufferPool.parseSize("1000"));
+    }
+
+}
@@ -0,0 +1,36 @@
+package dk.kb.cdx.workflow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+
+import org.junit.jupiter.api.Test;
+
+public class ResourceLimiterTest {
+
+    @Test
+    void testReadsLimitedPerMount() {
+        Path warcFile = CdxIndexerWorkflowTest.getTestWarcFile();
+        Path sameFolder = warcFile.resolveSibling("other.warc.gz");
+
+        ResourceLimiter limiter = new ResourceLimiter(0, 1);
+        Semaphore permits = limiter.getReadPermits(warcFile);
+        assertSame(permits, limiter.getReadPermits(sameFolder), "Files on the same mount must share the permits");
+        assertTrue(permits.tryAcquire());
+        assertFalse(limiter.getReadPermits(sameFolder).tryAcquire(), "Only 1 read allowed from the mount");
+        permits.release();
+        assertTrue(limiter.getReadPermits(sameFolder).tryAcquire());
+    }
+
+    @Test
+    void testNoLimit() {
+        ResourceLimiter limiter = new ResourceLimiter(0, 0);
+        assertEquals(Integer.MAX_VALUE, limiter.getServerPermits().availablePermits());
+        assertEquals(Integer.MAX_VALUE, limiter.getReadPermits(CdxIndexerWorkflowTest.getTestWarcFile()).availablePermits());
+    }
+
+}
@@ -0,0 +1,62 @@
+package dk.kb.cdx.workflow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The CDX output must be the same when the WARC-file is read with a large buffer or memory mapped, as when jwarc reads the file itself.
+ */
+public class WarcChannelsTest {
+
+    @Test
+    void testReadModesGiveSameCdxOutput() throws Exception {
+        String warcFile = CdxIndexerWorkflowTest.getTestWarcFile().toString();
+
+        String expected = getCdx(warcFile, null, false);
+        assertEquals(expected, getCdx(warcFile, WarcChannels.allocate(4*1024*1024), false), "Buffered read gave different CDX output");
+        assertEquals(expected, getCdx(warcFile, WarcChannels.allocate(1000), false), "Buffered read with small buffer gave different CDX output"); //Rounded up to 4KB
+        assertEquals(expected, getCdx(warcFile, null, true), "Memory mapped read gave different CDX output");
+    }
+
+    @Test
+    void testReadBufferReused() throws Exception {
+        String warcFile = CdxIndexerWorkflowTest.getTestWarcFile().toString();
+        String expected = getCdx(warcFile, null, false);
+
+        // A worker reuses its buffer for all WARC-files. Data left in the buffer from the last file must not be read
+        ByteBuffer readBuffer = WarcChannels.allocate(3*1024*1024); // Larger than the WARC-file
+        assertEquals(expected, getCdx(warcFile, readBuffer, false));
+        assertEquals(expected, getCdx(warcFile, readBuffer, false), "Reused buffer gave different CDX output");
+    }
+
+    @Test
+    void testWarmStopsBetweenBlocks() throws Exception {
+        Path warcFile = CdxIndexerWorkflowTest.getTestWarcFile();
+        ByteBuffer buffer = WarcChannels.allocate(4096);
+        assertEquals(Files.size(warcFile), WarcChannels.warm(warcFile, buffer, () -> false));
+
+        AtomicInteger checks = new AtomicInteger();
+        assertEquals(2*4096, WarcChannels.warm(warcFile, buffer, () -> checks.incrementAndGet() > 2), "Must stop after 2 blocks");
+    }
+
+    @Test
+    void testAlignedSize() {
+        assertEquals(4096, WarcChannels.alignedSize(0));
+        assertEquals(4096, WarcChannels.alignedSize(4096));
+        assertEquals(8192, WarcChannels.alignedSize(4097));
+    }
+
+    private static String getCdx(String warcFile, ByteBuffer readBuffer, boolean memoryMapped) throws Exception {
+        StringWriter writer = new StringWriter();
+        CdxIndexWorker.writeCdx(writer, warcFile, CdxIndexerWorkflow.createCdxBuilder(), true, readBuffer, memoryMapped);
+        return writer.toString();
+    }
+
+}
@@ -0,0 +1,67 @@
+package dk.kb.cdx.workflow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.ZipException;
+
+import org.junit.jupiter.api.Test;
+import org.netpreserve.jwarc.ParsingException;
+
+public class WarcFailureTest {
+
+    @Test
+    void testClassify() {
+        assertEquals(WarcFailure.Type.TRANSIENT, WarcFailure.classify(new IOException("Read error")));
+        assertEquals(WarcFailure.Type.TRANSIENT, WarcFailure.classify(new NoSuchFileException("/netarkivet/missing.warc.gz")));
+        assertEquals(WarcFailure.Type.TRANSIENT, WarcFailure.classify(new CdxServerStatusException(503, "Service Unavailable")));
+        assertEquals(WarcFailure.Type.PERMANENT, WarcFailure.classify(new CdxServerStatusException(400, "Bad Request")));
+        for (int status : new int[] {401, 403, 404, 413, 500}) { // Server or configuration problems, not the WARC-file
+            assertEquals(WarcFailure.Type.TRANSIENT, WarcFailure.classify(new CdxServerStatusException(status, "")), "Status:"+status);
+        }
+        assertEquals(WarcFailure.Type.PERMANENT, WarcFailure.classify(new IOException(new ZipException("invalid block type"))));
+        assertEquals(WarcFailure.Type.TRANSIENT, WarcFailure.classify(new EOFException()), "The WARC-file can still be being copied");
+        assertEquals(WarcFailure.Type.PERMANENT, WarcFailure.classify(new ParsingException("invalid WARC record")));
+        assertEquals(WarcFailure.Type.TRANSIENT, WarcFailure.classify(new IllegalArgumentException("invalid header")), "Only known parse exceptions are permanent");
+    }
+
+    @Test
+    void testClassifyWrapped() {
+        // Stale NFS handle thrown from a stream. The wrapper must not make it permanent
+        UncheckedIOException staleHandle = new UncheckedIOException(new IOException("Stale file handle"));
+        assertEquals(WarcFailure.Type.TRANSIENT, WarcFailure.classify(staleHandle));
+        assertEquals(WarcFailure.Type.TRANSIENT, WarcFailure.classify(new RuntimeException(staleHandle)));
+        assertEquals(WarcFailure.Type.PERMANENT, WarcFailure.classify(new ExecutionException(new ParsingException("invalid WARC record"))));
+        assertEquals(WarcFailure.Type.PERMANENT, WarcFailure.classify(new UncheckedIOException(new ZipException("invalid block type"))));
+
+        WarcFailure failure = WarcFailure.of("/netarkivet/a.warc.gz", staleHandle, 1, -1);
+        assertEquals(WarcFailure.Type.TRANSIENT, failure.getType());
+        assertEquals("IOException: Stale file handle", failure.getCause());
+    }
+
+    @Test
+    void testTruncated() {
+        // Unexpected end of the gzip stream while the WARC-file is still being copied to the mount
+        WarcFailure truncated = WarcFailure.of("/netarkivet/a.warc.gz", new UncheckedIOException(new EOFException("Unexpected end of ZLIB input stream")), 1, 1234);
+        assertEquals(WarcFailure.Type.TRANSIENT, truncated.getType());
+        assertTrue(truncated.isTruncated());
+        assertEquals(WarcFailure.Type.TRANSIENT, WarcFailure.classify(new IOException(new EOFException())));
+        assertTrue(WarcFailure.isTruncated(new IOException(new EOFException())));
+
+        assertFalse(WarcFailure.of("/netarkivet/a.warc.gz", new IOException("Stale file handle"), 1, -1).isTruncated());
+        assertFalse(WarcFailure.of("/netarkivet/a.warc.gz", new ParsingException("invalid WARC record"), 1, -1).isTruncated());
+    }
+
+    @Test
+    void testToLine() {
+        WarcFailure failure = new WarcFailure("/a/b.warc.gz", WarcFailure.Type.PERMANENT, 1, 1234, "Error\tin\nheader");
+        assertEquals("/a/b.warc.gz\tPERMANENT\t1\t1234\tError in header", failure.toLine());
+    }
+
+}
@@ -0,0 +1,50 @@
+package dk.kb.cdx.workflow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class WarcPrefetcherTest {
+
+    @Test
+    void testPrefetchWaitsForReadPermitAndSkipsTakenFile() throws Exception {
+        Path warcFile = CdxIndexerWorkflowTest.getTestWarcFile();
+        Path copy = Files.createTempDirectory("prefetch").resolve("copy.warc.gz");
+        Files.copy(warcFile, copy);
+
+        ResourceLimiter limiter = new ResourceLimiter(0, 1);
+        Semaphore readPermits = limiter.getReadPermits(warcFile);
+        WarcPrefetcher prefetcher = new WarcPrefetcher(new ReadBufferPool(4096, 1), limiter);
+        try {
+            readPermits.acquire(); // A worker is reading from the mount
+            prefetcher.prefetch(List.of(warcFile.toString()));
+            Thread.sleep(200);
+            assertEquals(0, prefetcher.getPrefetchedBytes(), "Prefetch must wait for the read permit of the mount");
+
+            // The worker takes the file before the prefetcher gets the permit. The prefetcher must not read it
+            prefetcher.taken(warcFile.toString());
+            prefetcher.prefetch(List.of(copy.toString()));
+            readPermits.release();
+
+            long expected = Files.size(copy);
+            long deadline = System.currentTimeMillis()+10000;
+            while (prefetcher.getPrefetchedBytes() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(expected, prefetcher.getPrefetchedBytes(), "Only the file not taken must be read");
+            assertTrue(readPermits.tryAcquire(10, TimeUnit.SECONDS), "The prefetcher must release the read permit");
+        }
+        finally {
+            prefetcher.shutdown();
+            Files.deleteIfExists(copy);
+        }
+    }
+
+}